@@ -0,0 +1,86 @@
+package io.openmessaging.benchmark;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.MessageHeader;
+import io.openmessaging.demo.DefaultBytesMessage;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+final class BenchmarkSupport {
+
+    /**
+     * Root of all benchmark stores, should point to a tmpfs (e.g. /dev/shm) so that
+     * disk speed does not hide the cost of the append path
+     */
+    static final String STORE_ROOT = System.getProperty("store.path", "/dev/shm/oms-bench");
+
+    private BenchmarkSupport() {
+    }
+
+    static Path createStoreDir(String prefix) throws IOException {
+        Path root = Paths.get(STORE_ROOT);
+        Files.createDirectories(root);
+        return Files.createTempDirectory(root, prefix);
+    }
+
+    static void deleteStoreDir(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static String[] bucketNames(int buckets) {
+        String[] names = new String[buckets];
+        for (int i = 0; i < buckets; i++) {
+            names[i] = "TOPIC_" + i;
+        }
+        return names;
+    }
+
+    static byte[] body(int size) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte) 'x');
+        return body;
+    }
+
+    // Same headers and properties as io.openmessaging.tester.ProducerTester
+    static BytesMessage putTesterFields(BytesMessage message) {
+        message.putHeaders("HEADER_KEY", "fifogtb7y5");
+        message.putHeaders("094", "xlbo0dx");
+        message.putProperties("PRO_OFFSET", "PRODUCER4_920");
+        message.putProperties("yyd", "j8jn2j0");
+        return message;
+    }
+
+    // A message as it looks after DefaultProducer.send stripped the destination header
+    static BytesMessage storedMessage(byte[] body) {
+        return putTesterFields(new DefaultBytesMessage(body));
+    }
+
+    static BytesMessage topicMessage(String topic, byte[] body) {
+        BytesMessage message = storedMessage(body);
+        message.putHeaders(MessageHeader.TOPIC, topic);
+        return message;
+    }
+}
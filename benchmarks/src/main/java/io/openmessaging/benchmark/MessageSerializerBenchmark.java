@@ -0,0 +1,148 @@
+package io.openmessaging.benchmark;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.Message;
+import io.openmessaging.demo.DefaultBytesMessage;
+import io.openmessaging.demo.serializer.MessageSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link MessageSerializer#write(ByteBuffer, Message)} and {@link MessageSerializer#read(ByteBuffer)}
+ * over header/property mixes, body sizes and buffer kinds. This is the baseline for serializer format changes;
+ * run it with {@code -prof gc} (as {@link #main(String[])} does) to get the allocation rate per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSerializerBenchmark {
+
+    private static final int BUFFER_CAPACITY = 105 * 1024;
+
+    /**
+     * tester: the fields sent by ProducerTester, PRO_OFFSET hits the shortcut key
+     * messageId: MessageId and PRO_OFFSET shortcut keys only
+     * wide: sixteen plain keys without any shortcut
+     */
+    @Param({"tester", "messageId", "wide"})
+    String fields;
+
+    @Param({"16", "1024", "16384", "102400"})
+    int bodySize;
+
+    @Param({"heap", "direct", "mapped"})
+    String bufferType;
+
+    /**
+     * Write a CRC32 with every record, and verify it on read
+     */
+    @Param({"false", "true"})
+    boolean checksum;
+
+    MessageSerializer serializer;
+    MessageSerializer.Deserializer deserializer;
+    Message message;
+    ByteBuffer writeBuffer;
+    ByteBuffer readBuffer;
+
+    private Path storeDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serializer = new MessageSerializer(checksum, checksum);
+        deserializer = serializer.newDeserializer();
+        message = createMessage(fields, BenchmarkSupport.body(bodySize));
+        writeBuffer = allocate("write");
+        readBuffer = allocate("read");
+        serializer.write(readBuffer, message);
+        readBuffer.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkSupport.deleteStoreDir(storeDir);
+    }
+
+    private ByteBuffer allocate(String name) throws IOException {
+        switch (bufferType) {
+            case "heap":
+                return ByteBuffer.allocate(BUFFER_CAPACITY);
+            case "direct":
+                return ByteBuffer.allocateDirect(BUFFER_CAPACITY);
+            case "mapped":
+                if (storeDir == null) storeDir = BenchmarkSupport.createStoreDir("serializer");
+                // The mapping stays valid once the channel is closed
+                try (FileChannel channel = FileChannel.open(storeDir.resolve(name), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return channel.map(FileChannel.MapMode.READ_WRITE, 0, BUFFER_CAPACITY);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown buffer type: " + bufferType);
+        }
+    }
+
+    private static Message createMessage(String fields, byte[] body) {
+        BytesMessage message = new DefaultBytesMessage(body);
+        switch (fields) {
+            case "tester":
+                return BenchmarkSupport.putTesterFields(message);
+            case "messageId":
+                message.putHeaders("MessageId", "0A0B0C0D0E0F00000000000000010203");
+                message.putProperties("PRO_OFFSET", "PRODUCER7_1234567");
+                return message;
+            case "wide":
+                for (int i = 0; i < 8; i++) {
+                    message.putHeaders("header_key_" + i, "header_value_" + i);
+                    message.putProperties("property_key_" + i, "property_value_" + i);
+                }
+                return message;
+            default:
+                throw new IllegalArgumentException("Unknown field mix: " + fields);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        writeBuffer.clear();
+        serializer.write(writeBuffer, message);
+        return writeBuffer;
+    }
+
+    @Benchmark
+    public Message deserialize() {
+        readBuffer.clear();
+        return deserializer.read(readBuffer);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,134 @@
+package io.openmessaging.benchmark;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.KeyValue;
+import io.openmessaging.Message;
+import io.openmessaging.demo.DefaultKeyValue;
+import io.openmessaging.demo.DefaultProducer;
+import io.openmessaging.demo.producer.BucketManager;
+import io.openmessaging.demo.producer.BucketWriter;
+import io.openmessaging.demo.producer.BufferService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency (p99 from sample mode) of the producer append path, at three levels:
+ * a single {@link BucketWriter}, the {@link BucketManager} lookup plus append, and the full
+ * {@link DefaultProducer#send(Message)}.
+ * <p>
+ * The thread count is given with {@code -t}; {@link #main(String[])} sweeps 1 to 64 threads.
+ * The store is created under {@code -Dstore.path} (default /dev/shm/oms-bench), and every trial
+ * appends several hundred MB, so the tmpfs must be large enough.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class ProducerAppendBenchmark {
+
+    @Param({"1", "16", "100"})
+    int buckets;
+
+    @Param({"16", "1024", "16384"})
+    int bodySize;
+
+    Path storeDir;
+    String[] bucketNames;
+    BucketManager bucketManager;
+    BucketWriter[] writers;
+    byte[] body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        storeDir = BenchmarkSupport.createStoreDir("append");
+        bucketNames = BenchmarkSupport.bucketNames(buckets);
+        body = BenchmarkSupport.body(bodySize);
+
+        // Writers and manager get stores of their own, as each bucket file can only be created once
+        BufferService bufferService = new BufferService(storeDir.resolve("writer").toString());
+        storeDir.resolve("writer").toFile().mkdirs();
+        writers = new BucketWriter[buckets];
+        for (int i = 0; i < buckets; i++) {
+            writers[i] = new BucketWriter(bucketNames[i], bufferService, false);
+        }
+        KeyValue properties = new DefaultKeyValue();
+        properties.put("STORE_PATH", storeDir.resolve("manager").toString());
+        bucketManager = new BucketManager(properties);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writers = null;
+        bucketManager = null;
+        BenchmarkSupport.deleteStoreDir(storeDir);
+    }
+
+    @State(Scope.Thread)
+    public static class ProducerState {
+        final ByteBuffer localBuffer = ByteBuffer.allocate(105 * 1024);
+        DefaultProducer producer;
+        BytesMessage message;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ProducerAppendBenchmark benchmark) {
+            KeyValue properties = new DefaultKeyValue();
+            properties.put("STORE_PATH", benchmark.storeDir.resolve("producer").toString());
+            producer = new DefaultProducer(properties);
+            message = BenchmarkSupport.storedMessage(benchmark.body);
+        }
+
+        int nextBucket(int buckets) {
+            int bucket = next;
+            next = bucket + 1 == buckets ? 0 : bucket + 1;
+            return bucket;
+        }
+    }
+
+    @Benchmark
+    public void bucketWriterPutMessage(ProducerState state) {
+        writers[state.nextBucket(buckets)].putMessage(state.message, state.localBuffer);
+    }
+
+    @Benchmark
+    public void bucketManagerPutMessage(ProducerState state) {
+        bucketManager.putMessage(bucketNames[state.nextBucket(buckets)], state.message, state.localBuffer);
+    }
+
+    @Benchmark
+    public void producerSend(ProducerState state) {
+        // send() strips the destination header, so a fresh message is needed for every call
+        String topic = bucketNames[state.nextBucket(buckets)];
+        state.producer.send(BenchmarkSupport.putTesterFields(state.producer.createBytesMessageToTopic(topic, body)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] {1, 2, 4, 8, 16, 32, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(ProducerAppendBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
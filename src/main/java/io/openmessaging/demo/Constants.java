@@ -7,7 +7,91 @@ public class Constants {
 
     // Producer
     public static final int BUFFER_SIZE = 8 * 1024 * 1024;
+
+    // Largest serialized record
+    public static final int MAX_RECORD_SIZE = 105 * 1024;
+
+    // Largest batch appended at once, and how far a mapped window overlaps the next one
+    public static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+    // Size of the segment files of a bucket, must be a multiple of the page size
+    public static final long SEGMENT_SIZE = 1024 * 1024 * 1024;
     
     public static final boolean ENABLE_MESSAGE_SAMPLING = false;
 
+    // Consumer
+    public static final int READ_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    // Producer and consumer properties
+    public static final String STORE_PATH = "STORE_PATH";
+
+    // Producer properties
+
+    // Write a CRC32 checksum with every record ("true" / "false")
+    public static final String RECORD_CHECKSUM = "record.checksum";
+
+    // Codec compressing the batches appended to the buckets: "none" or "lz4"
+    public static final String COMPRESSION_CODEC = "compression.codec";
+
+    // When appended records are forced to disk: "none", "periodic", "bytes" or "sync", see FlushPolicy
+    public static final String FLUSH_POLICY = "flush.policy";
+
+    // Interval of the "periodic" flush policy in milliseconds
+    public static final String FLUSH_INTERVAL_MS = "flush.interval.ms";
+
+    // Unflushed bytes of a bucket that trigger a force under the "bytes" flush policy
+    public static final String FLUSH_BYTES = "flush.bytes";
+
+    // Append workers of asynchronous sends, default one per core
+    public static final String ASYNC_WORKERS = "async.workers";
+
+    // Capacity of the queue of every append worker, sends to a full queue fail; all sends to a bucket share one queue
+    public static final String ASYNC_QUEUE_CAPACITY = "async.queue.capacity";
+
+    // Complete asynchronous sends once the records are forced to disk ("true" / "false")
+    public static final String ASYNC_DURABLE = "async.durable";
+
+    // Capacity of the ring of messages sent one-way to every bucket, a power of two
+    public static final String ONEWAY_RING_CAPACITY = "oneway.ring.capacity";
+
+    // What a one-way send does when the ring is full: "block", "drop-newest" or "drop-oldest"
+    public static final String ONEWAY_BACKPRESSURE = "oneway.backpressure";
+
+    // Bytes of records a producer accumulates per bucket before appending them at once, 0 to append every send
+    public static final String BATCH_SIZE = "batch.size";
+
+    // Longest time in milliseconds an accumulated record waits for its batch to fill up
+    public static final String LINGER_MS = "linger.ms";
+
+    // Consumer properties
+
+    // Verify the checksum of the records that carry one, corrupted records are skipped ("true" / "false")
+    public static final String VERIFY_CHECKSUM = "record.checksum.verify";
+
+    // Poll messages as views over the store, decoded on access, see LazyBytesMessage ("true" / "false")
+    public static final String LAZY_MESSAGES = "message.lazy";
+
+    // Read every attached bucket on its own thread, ahead of the polls ("true" / "false")
+    public static final String PARALLEL_READERS = "consumer.parallel";
+
+    // Messages a parallel reader decodes ahead of the polls
+    public static final String READER_QUEUE_CAPACITY = "consumer.queue.capacity";
+
+    // Read the buckets while producers write them, polls wait for new records ("true" / "false")
+    public static final String FOLLOW = "consumer.follow";
+
+    // How a followed bucket is waited on: "spin", "yield", "park" or "backoff", see WaitStrategy
+    public static final String WAIT_STRATEGY = "consumer.wait.strategy";
+
+    // Time the "park" and "backoff" wait strategies park for, in microseconds
+    public static final String WAIT_PARK_MICROS = "consumer.wait.park.micros";
+
+    // Longest time in milliseconds a poll waits for a followed bucket before returning null, 0 to wait until
+    // every bucket is closed
+    public static final String POLL_TIMEOUT_MS = "consumer.poll.timeout.ms";
+
+    // Messages a poll(KeyValue) carrying this property fetches at once, it returns the first and the next polls
+    // the others, see DefaultPullConsumer#poll(KeyValue)
+    public static final String POLL_MAX_MESSAGES = "consumer.poll.max.messages";
+
 }
@@ -0,0 +1,118 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.BatchToPartition;
+import io.openmessaging.BytesMessage;
+import io.openmessaging.KeyValue;
+import io.openmessaging.MessageHeader;
+import io.openmessaging.demo.producer.BucketManager;
+import io.openmessaging.demo.serializer.MessageSerializer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages to one topic or queue, appended all at once on commit.
+ * <p>
+ * Sent messages are serialized into a private staging buffer right away, so they may be reused
+ * afterwards. The batch is appended as a single record, readers never see a part of it.
+ * A batch is not thread-safe, it can be reused after commit or rollback.
+ */
+public class DefaultBatchToPartition implements BatchToPartition {
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final String partition;
+    private final BucketManager bucketManager;
+    private final MessageSerializer serializer;
+
+    private ByteBuffer staging = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private int count = 0;
+
+    public DefaultBatchToPartition(String partition, BucketManager bucketManager) {
+        this.partition = partition;
+        this.bucketManager = bucketManager;
+        this.serializer = bucketManager.getSerializer(partition);
+        staging.position(MessageSerializer.MAX_BATCH_HEADER_SIZE);
+    }
+
+    /**
+     * @throws ClientOMSException if the message is addressed to another topic or queue, or if the batch
+     *                            would exceed {@link Constants#MAX_BATCH_SIZE}, it should be committed and
+     *                            the message sent in the next one
+     */
+    @Override public void send(BytesMessage message) {
+        if (message == null) throw new ClientOMSException("Message should not be null");
+        DefaultKeyValue headers = (DefaultKeyValue) message.headers();
+        checkDestination(headers.getString(MessageHeader.TOPIC));
+        checkDestination(headers.getString(MessageHeader.QUEUE));
+        // Every message of the batch goes to its partition, which readers add back
+        String topic = headers.removeString(MessageHeader.TOPIC);
+        String queue = headers.removeString(MessageHeader.QUEUE);
+        boolean staged = false;
+        try {
+            stage(message);
+            staged = true;
+        } finally {
+            // A rejected message is left as it was sent
+            if (!staged) {
+                if (topic != null) headers.put(MessageHeader.TOPIC, topic);
+                if (queue != null) headers.put(MessageHeader.QUEUE, queue);
+            }
+        }
+        count++;
+    }
+
+    // Serializes the message after the staged ones, the staging buffer grows up to the largest batch
+    private void stage(BytesMessage message) {
+        final int start = staging.position();
+        while (true) {
+            try {
+                serializer.writeBatched(staging, message);
+                return;
+            } catch (BufferOverflowException ex) {
+                staging.position(start);
+                if (staging.capacity() >= Constants.MAX_BATCH_SIZE) {
+                    throw new ClientOMSException("Batch is full: " + partition);
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(staging.capacity() * 2, Constants.MAX_BATCH_SIZE));
+                staging.flip();
+                larger.put(staging);
+                staging = larger;
+            } catch (RuntimeException ex) {
+                staging.position(start);
+                throw new ClientOMSException("Message cannot be serialized: " + partition, ex);
+            }
+        }
+    }
+
+    private void checkDestination(String destination) {
+        if (destination != null && !destination.equals(partition)) {
+            throw new ClientOMSException("Message to " + destination + " sent in a batch to " + partition);
+        }
+    }
+
+    @Override public void send(BytesMessage message, KeyValue properties) {
+        throw new UnsupportedOperationException("Unsupported");
+    }
+
+    /**
+     * Appends the messages sent since the last commit or rollback
+     */
+    @Override public void commit() {
+        if (count == 0) return;
+        staging.flip();
+        try {
+            bucketManager.putBatch(partition, staging, count);
+        } finally {
+            rollback();
+        }
+    }
+
+    /**
+     * Discards the messages sent since the last commit or rollback
+     */
+    @Override public void rollback() {
+        staging.clear();
+        staging.position(MessageSerializer.MAX_BATCH_HEADER_SIZE);
+        count = 0;
+    }
+}
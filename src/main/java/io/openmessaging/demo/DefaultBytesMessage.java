@@ -6,13 +6,20 @@ import io.openmessaging.Message;
 
 public class DefaultBytesMessage implements BytesMessage {
 
-    private KeyValue headers = new DefaultKeyValue();
+    // Both created by the first put
+    private KeyValue headers;
     private KeyValue properties;
     private byte[] body;
 
     public DefaultBytesMessage(byte[] body) {
         this.body = body;
     }
+
+    public DefaultBytesMessage(byte[] body, KeyValue headers, KeyValue properties) {
+        this.body = body;
+        this.headers = headers;
+        this.properties = properties;
+    }
     @Override public byte[] getBody() {
         return body;
     }
@@ -23,6 +30,7 @@ public class DefaultBytesMessage implements BytesMessage {
     }
 
     @Override public KeyValue headers() {
+        if (headers == null) headers = new DefaultKeyValue();
         return headers;
     }
 
@@ -31,21 +39,25 @@ public class DefaultBytesMessage implements BytesMessage {
     }
 
     @Override public Message putHeaders(String key, int value) {
+        if (headers == null) headers = new DefaultKeyValue();
         headers.put(key, value);
         return this;
     }
 
     @Override public Message putHeaders(String key, long value) {
+        if (headers == null) headers = new DefaultKeyValue();
         headers.put(key, value);
         return this;
     }
 
     @Override public Message putHeaders(String key, double value) {
+        if (headers == null) headers = new DefaultKeyValue();
         headers.put(key, value);
         return this;
     }
 
     @Override public Message putHeaders(String key, String value) {
+        if (headers == null) headers = new DefaultKeyValue();
         headers.put(key, value);
         return this;
     }
@@ -1,73 +1,241 @@
 package io.openmessaging.demo;
 
 import io.openmessaging.KeyValue;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+/**
+ * Key values kept in parallel arrays, in the order they were first put.
+ * <p>
+ * Numbers are stored as raw long bits next to a type tag, so they are never boxed, and looking
+ * up one of the few keys a message usually has is a scan of the keys. Only beyond
+ * {@link #MAX_SCANNED} entries are the keys indexed by a map. Getting a value as another type
+ * than it was put throws {@link ClassCastException}.
+ */
 public class DefaultKeyValue implements KeyValue {
 
-    private final Map<String, Object> kvs = new HashMap<>();
+    public static final byte STRING = 0;
+    public static final byte INT = 1;
+    public static final byte LONG = 2;
+    public static final byte DOUBLE = 3;
+
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int MAX_SCANNED = 16;
+
+    private static final String[] NO_STRINGS = new String[0];
+    private static final byte[] NO_TYPES = new byte[0];
+    private static final long[] NO_BITS = new long[0];
+
+    private String[] keys = NO_STRINGS;
+    private byte[] types = NO_TYPES;
+    private long[] bits = NO_BITS;
+    private String[] strings = NO_STRINGS;
+    private int size = 0;
+
+    // Index of the keys once there are more than MAX_SCANNED
+    private HashMap<String, Integer> index;
+
     @Override
     public KeyValue put(String key, int value) {
-        kvs.put(key, value);
+        set(key, INT, value, null);
         return this;
     }
 
     @Override
     public KeyValue put(String key, long value) {
-        kvs.put(key, value);
+        set(key, LONG, value, null);
         return this;
     }
 
     @Override
     public KeyValue put(String key, double value) {
-        kvs.put(key, value);
+        set(key, DOUBLE, Double.doubleToRawLongBits(value), null);
         return this;
     }
 
     @Override
     public KeyValue put(String key, String value) {
-        kvs.put(key, value);
+        set(key, STRING, 0, value);
         return this;
     }
 
     @Override
     public int getInt(String key) {
-        return (Integer)kvs.getOrDefault(key, 0);
+        int i = indexOf(key, INT);
+        return i < 0 ? 0 : (int) bits[i];
     }
 
     @Override
     public long getLong(String key) {
-        return (Long)kvs.getOrDefault(key, 0L);
+        int i = indexOf(key, LONG);
+        return i < 0 ? 0L : bits[i];
     }
 
     @Override
     public double getDouble(String key) {
-        return (Double)kvs.getOrDefault(key, 0.0d);
+        int i = indexOf(key, DOUBLE);
+        return i < 0 ? 0.0d : Double.longBitsToDouble(bits[i]);
     }
 
     @Override
     public String getString(String key) {
-        return (String)kvs.getOrDefault(key, null);
+        int i = indexOf(key, STRING);
+        return i < 0 ? null : strings[i];
     }
 
     @Override
     public Set<String> keySet() {
-        return kvs.keySet();
+        return new KeySet();
     }
 
     @Override
     public boolean containsKey(String key) {
-        return kvs.containsKey(key);
+        return indexOf(key) >= 0;
     }
-    
+
     public String removeString(String key) {
-        return (String) kvs.remove(key);
+        int i = indexOf(key, STRING);
+        if (i < 0) return null;
+        String value = strings[i];
+        int moved = size - i - 1;
+        System.arraycopy(keys, i + 1, keys, i, moved);
+        System.arraycopy(types, i + 1, types, i, moved);
+        System.arraycopy(bits, i + 1, bits, i, moved);
+        System.arraycopy(strings, i + 1, strings, i, moved);
+        size--;
+        keys[size] = null;
+        strings[size] = null;
+        index = null;
+        if (size > MAX_SCANNED) buildIndex();
+        return value;
+    }
+
+    // Entries by position, for serializers
+
+    public int size() {
+        return size;
+    }
+
+    public String keyAt(int i) {
+        return keys[i];
+    }
+
+    public byte typeAt(int i) {
+        return types[i];
+    }
+
+    // The value of an int, long or double entry, doubles as their raw long bits
+    public long bitsAt(int i) {
+        return bits[i];
+    }
+
+    public String stringAt(int i) {
+        return strings[i];
+    }
+
+    private void set(String key, byte type, long valueBits, String value) {
+        int i = indexOf(key);
+        if (i < 0) {
+            if (size == keys.length) grow();
+            i = size++;
+            keys[i] = key;
+            if (index != null) {
+                index.put(key, i);
+            } else if (size > MAX_SCANNED) {
+                buildIndex();
+            }
+        }
+        types[i] = type;
+        bits[i] = valueBits;
+        strings[i] = value;
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, keys.length * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        types = Arrays.copyOf(types, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+    }
+
+    private void buildIndex() {
+        index = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            index.put(keys[i], i);
+        }
+    }
+
+    private int indexOf(String key) {
+        if (index != null) {
+            Integer i = index.get(key);
+            return i == null ? -1 : i;
+        }
+        for (int i = 0; i < size; i++) {
+            // Keys read from a store are interned, most lookups match by reference
+            if (keys[i] == key || keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(String key, byte type) {
+        int i = indexOf(key);
+        if (i >= 0 && types[i] != type) {
+            throw new ClassCastException("Value of " + key + " is not of type " + type + " but " + types[i]);
+        }
+        return i;
     }
 
     @Override
     public String toString() {
-        return kvs.toString();
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(keys[i]).append('=');
+            switch (types[i]) {
+                case INT:
+                    builder.append((int) bits[i]);
+                    break;
+                case LONG:
+                    builder.append(bits[i]);
+                    break;
+                case DOUBLE:
+                    builder.append(Double.longBitsToDouble(bits[i]));
+                    break;
+                default:
+                    builder.append(strings[i]);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    // Live view of the keys, in the order they were first put
+    private final class KeySet extends AbstractSet<String> {
+        @Override public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = 0;
+
+                @Override public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override public String next() {
+                    if (next >= size) throw new NoSuchElementException();
+                    return keys[next++];
+                }
+            };
+        }
+
+        @Override public int size() {
+            return size;
+        }
+
+        @Override public boolean contains(Object key) {
+            return key instanceof String && containsKey((String) key);
+        }
     }
 }
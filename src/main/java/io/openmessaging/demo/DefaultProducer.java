@@ -9,6 +9,8 @@ import io.openmessaging.MessageHeader;
 import io.openmessaging.Producer;
 import io.openmessaging.Promise;
 import io.openmessaging.demo.producer.BucketManager;
+import io.openmessaging.demo.producer.FlushStats;
+import io.openmessaging.demo.producer.RecordAccumulator;
 
 import java.nio.ByteBuffer;
 
@@ -17,12 +19,24 @@ public class DefaultProducer  implements Producer {
 
     private KeyValue properties;
     
-    private final ByteBuffer localBuffer = ByteBuffer.allocate(105 * 1024);
+    private final ByteBuffer localBuffer = ByteBuffer.allocate(Constants.MAX_RECORD_SIZE);
     private final BucketManager bucketManager; 
+    private final RecordAccumulator accumulator; // null unless batching
+    private boolean closed = false;
 
     public DefaultProducer(KeyValue properties) {
         this.properties = properties;
-        this.bucketManager = BucketManager.getInstance(properties.getString("STORE_PATH"));
+        this.bucketManager = BucketManager.getInstance(properties);
+        bucketManager.retain();
+        int batchSize = KeyValues.getInt(properties, Constants.BATCH_SIZE, 0);
+        try {
+            accumulator = batchSize > 0
+                    ? new RecordAccumulator(bucketManager, batchSize, KeyValues.getLong(properties, Constants.LINGER_MS, 10))
+                    : null;
+        } catch (RuntimeException ex) {
+            bucketManager.release();
+            throw ex;
+        }
     }
 
 
@@ -38,15 +52,46 @@ public class DefaultProducer  implements Producer {
 
     }
 
-    @Override public void shutdown() {
-
+    /**
+     * Flushes, the last producer to shut down also closes the store: the end of every bucket
+     * is recorded and its files are truncated to it
+     */
+    @Override public synchronized void shutdown() {
+        if (closed) return;
+        closed = true;
+        if (accumulator != null) accumulator.close();
+        bucketManager.flush();
+        bucketManager.release();
     }
 
     @Override public KeyValue properties() {
         return properties;
     }
 
+    // Flush counters of the store shared by all producers of the process
+    public FlushStats getFlushStats() {
+        return bucketManager.getFlushStats();
+    }
+
+    // One-way messages dropped by all producers of the process
+    public long getDroppedMessages() {
+        return bucketManager.getOnewayAppender().getDroppedMessages();
+    }
+
+    /**
+     * With {@link Constants#BATCH_SIZE} set, the message is appended later together with the next
+     * ones to the same bucket. The messages sent by a producer keep their order within a bucket.
+     */
     @Override public void send(Message message) {
+        if (accumulator != null) {
+            accumulator.send(removeBucket(message), message);
+        } else {
+            bucketManager.putMessage(removeBucket(message), message, localBuffer);
+        }
+    }
+
+    // @return the topic or queue the message is sent to, its header is not stored with the message
+    private String removeBucket(Message message) {
         if (message == null) throw new ClientOMSException("Message should not be null");
         DefaultKeyValue headers = (DefaultKeyValue) message.headers();
         String topic = headers.removeString(MessageHeader.TOPIC);
@@ -54,39 +99,64 @@ public class DefaultProducer  implements Producer {
         if ((topic == null && queue == null) || (topic != null && queue != null)) {
             throw new ClientOMSException(String.format("Queue:%s Topic:%s should put one and only one", true, queue));
         }
-        String bucket = topic == null ? queue : topic;
-        bucketManager.putMessage(bucket, message, localBuffer);
+        return topic == null ? queue : topic;
     }
 
     @Override public void send(Message message, KeyValue properties) {
         throw new UnsupportedOperationException("Unsupported");
     }
 
+    /**
+     * Hands the message off to an append worker. The promise completes once the message is
+     * appended, or once it is on disk if {@link Constants#ASYNC_DURABLE} is set; it fails at once
+     * if the queue of the worker is full. The message must not be modified until then.
+     */
     @Override public Promise<Void> sendAsync(Message message) {
-        throw new UnsupportedOperationException("Unsupported");
+        String bucket = removeBucket(message);
+        DefaultPromise<Void> promise = new DefaultPromise<>();
+        if (!bucketManager.getAsyncAppender().submit(bucket, message, promise)) {
+            promise.setFailure(new ClientOMSException("Send queue is full"));
+        }
+        return promise;
     }
 
     @Override public Promise<Void> sendAsync(Message message, KeyValue properties) {
         throw new UnsupportedOperationException("Unsupported");
     }
 
+    /**
+     * Queues the message in the ring of its bucket, see {@link Constants#ONEWAY_BACKPRESSURE} for
+     * what happens when the ring is full. The message must not be modified afterwards.
+     */
     @Override public void sendOneway(Message message) {
-        throw new UnsupportedOperationException("Unsupported");
+        bucketManager.getOnewayAppender().send(removeBucket(message), message);
     }
 
     @Override public void sendOneway(Message message, KeyValue properties) {
         throw new UnsupportedOperationException("Unsupported");
     }
 
+    /**
+     * @param partitionName the topic or queue all messages of the batch are sent to
+     */
     @Override public BatchToPartition createBatchToPartition(String partitionName) {
-        throw new UnsupportedOperationException("Unsupported");
+        return new DefaultBatchToPartition(partitionName, bucketManager);
     }
 
     @Override public BatchToPartition createBatchToPartition(String partitionName, KeyValue properties) {
-        throw new UnsupportedOperationException("Unsupported");
+        return createBatchToPartition(partitionName);
     }
 
+    /**
+     * Returns once every message sent before the call is on disk, including those of other
+     * producers of the process and those sent asynchronously or one-way, unless they failed or
+     * were dropped. Concurrent calls share the forces of the mapped files.
+     */
     @Override public void flush() {
-        // Do nothing
+        if (accumulator != null) accumulator.appendAll();
+        // Sent asynchronously or one-way, they may not be appended yet
+        bucketManager.getAsyncAppender().awaitAppended();
+        bucketManager.getOnewayAppender().awaitAppended();
+        bucketManager.flush();
     }
 }
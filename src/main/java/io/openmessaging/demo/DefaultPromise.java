@@ -0,0 +1,145 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.Promise;
+import io.openmessaging.PromiseListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Promise completed once by whoever runs the operation, with a value or a failure.
+ * Listeners run in the completing thread, or in the registering one if the promise is already done.
+ */
+public class DefaultPromise<V> implements Promise<V> {
+    private static final Logger logger = LoggerFactory.getLogger(DefaultPromise.class);
+
+    private enum State { PENDING, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    private State state = State.PENDING; // guarded by this
+    private V value;
+    private Throwable throwable;
+    private List<PromiseListener<V>> listeners;
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(State.CANCELLED, null, null);
+    }
+
+    /**
+     * Marks the operation as started, it cannot be cancelled from now on
+     *
+     * @return false if the promise was cancelled before
+     */
+    public synchronized boolean setUncancellable() {
+        if (state == State.PENDING) state = State.RUNNING;
+        return state == State.RUNNING;
+    }
+
+    @Override public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    @Override public synchronized boolean isDone() {
+        return state.compareTo(State.SUCCEEDED) >= 0;
+    }
+
+    /**
+     * @throws ClientOMSException if the operation failed or was cancelled
+     */
+    @Override public synchronized V get() {
+        boolean interrupted = false;
+        while (!isDone()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return result();
+    }
+
+    /**
+     * @param timeout in milliseconds
+     * @return the value, or null if the operation is not done in time
+     * @throws ClientOMSException if the operation failed or was cancelled
+     */
+    @Override public synchronized V get(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!isDone() && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isDone() ? result() : null;
+    }
+
+    private V result() {
+        if (state == State.FAILED) throw new ClientOMSException("Operation failed", throwable);
+        if (state == State.CANCELLED) throw new ClientOMSException("Operation cancelled");
+        return value;
+    }
+
+    @Override public boolean set(V value) {
+        return complete(State.SUCCEEDED, value, null);
+    }
+
+    public boolean setFailure(Throwable throwable) {
+        return complete(State.FAILED, null, throwable);
+    }
+
+    private boolean complete(State result, V value, Throwable throwable) {
+        List<PromiseListener<V>> toNotify;
+        synchronized (this) {
+            if (isDone()) return false;
+            // Running operations are never interrupted, an append cannot be rolled back
+            if (result == State.CANCELLED && state == State.RUNNING) return false;
+            this.state = result;
+            this.value = value;
+            this.throwable = throwable;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (PromiseListener<V> listener : toNotify) {
+                notifyListener(listener);
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public void addListener(PromiseListener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (listeners == null) listeners = new ArrayList<>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    private void notifyListener(PromiseListener<V> listener) {
+        try {
+            if (state == State.SUCCEEDED) {
+                listener.operationComplete(this);
+            } else {
+                listener.operationFailed(this);
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Promise listener failed", ex);
+        }
+    }
+
+    @Override public synchronized Throwable getThrowable() {
+        return throwable;
+    }
+}
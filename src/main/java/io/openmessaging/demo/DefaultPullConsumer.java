@@ -5,58 +5,326 @@ import io.openmessaging.Message;
 import io.openmessaging.PullConsumer;
 import io.openmessaging.demo.consumer.BufferService;
 import io.openmessaging.demo.consumer.MessageReader;
+import io.openmessaging.demo.consumer.ReaderTask;
+import io.openmessaging.demo.consumer.WaitStrategy;
 import io.openmessaging.demo.serializer.MessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Pull consumer of the attached queue and topics.
+ * <p>
+ * By default the buckets are read on the polling thread, switching bucket every 64 messages. In parallel mode every
+ * bucket is read by its own {@link ReaderTask} into a bounded queue, and polls merge those queues; the messages of
+ * a bucket are still polled in order. A consumer done polling is shut down, which stops its reader tasks and
+ * releases the windows it maps.
+ * <p>
+ * A consumer following the buckets reads them while they are written: polls wait by the {@link WaitStrategy}
+ * for new records, and a bucket ends once its producer closes it.
+ * <p>
+ * Runs of messages are pulled by {@link #poll(int, List)}, or through the OMS API by {@link #poll(KeyValue)} given
+ * {@link Constants#POLL_MAX_MESSAGES}.
+ */
 public class DefaultPullConsumer implements PullConsumer {
     private static final Logger logger = LoggerFactory.getLogger(DefaultPullConsumer.class);
     
     private KeyValue properties;
     private BufferService bufferService;
     private ArrayList<MessageReader> readers = new ArrayList<>();
+    private ArrayList<ReaderTask> tasks = new ArrayList<>();
     private int pollIndex = 0;
     private int count = 0;
 
-    private MessageSerializer deserializer = new MessageSerializer(); // thread local
+    // Counters of the readers already removed
+    private long corruptedRecords = 0;
+    private long skippedRecords = 0;
+
+    // Shared by the readers, each of them reads through its own deserializer
+    private final MessageSerializer serializer;
+    private final boolean parallel;
+    private final int readerQueueCapacity;
+    private final boolean follow;
+    // Waits of the polls, or of the reader tasks in parallel mode, on followed buckets
+    private final WaitStrategy waitStrategy;
+    private final long pollTimeoutNanos;
+    // Polling thread waiting for a reader task to queue a message
+    private volatile Thread waiter;
+    // Failure of a reader task met by a batch poll that had messages to return first
+    private ClientOMSException pendingFailure;
+    // Messages fetched by a batch pull of poll(KeyValue), returned before any other
+    private final ArrayList<Message> fetched = new ArrayList<>();
+    private int fetchedIndex = 0;
     
     public DefaultPullConsumer(KeyValue properties) {
         this.properties = properties;
-        this.bufferService = BufferService.getInstance(properties.getString("STORE_PATH"));
+        this.bufferService = BufferService.getInstance(properties.getString(Constants.STORE_PATH));
+        this.serializer = new MessageSerializer(false, KeyValues.getBoolean(properties, Constants.VERIFY_CHECKSUM, false),
+                null, KeyValues.getBoolean(properties, Constants.LAZY_MESSAGES, false));
+        this.parallel = KeyValues.getBoolean(properties, Constants.PARALLEL_READERS, false);
+        this.readerQueueCapacity = KeyValues.getInt(properties, Constants.READER_QUEUE_CAPACITY, 1024);
+        this.follow = KeyValues.getBoolean(properties, Constants.FOLLOW, false);
+        this.waitStrategy = new WaitStrategy(
+                WaitStrategy.Kind.parse(KeyValues.getString(properties, Constants.WAIT_STRATEGY, "backoff")),
+                TimeUnit.MICROSECONDS.toNanos(KeyValues.getInt(properties, Constants.WAIT_PARK_MICROS, 50)));
+        this.pollTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(KeyValues.getInt(properties, Constants.POLL_TIMEOUT_MS, 0));
     }
 
     @Override public KeyValue properties() {
         return properties;
     }
 
+    /**
+     * @return the next message, or null once every bucket is read to its end, or when following the buckets,
+     * once the poll timed out
+     */
     @Override public synchronized Message poll() {
-        MessageReader reader = readers.get(pollIndex);
-        Message message = reader.readMessage();
-        while (message == null) {
-            readers.remove(pollIndex);
-            if (readers.isEmpty()) return null;
-            pollIndex = pollIndex % readers.size();
-            reader = readers.get(pollIndex);
-            message = reader.readMessage();
+        if (fetchedIndex < fetched.size()) return nextFetched();
+        if (parallel) return pollTasks();
+        final long start = System.nanoTime();
+        int idle = 0;
+        while (!readers.isEmpty()) {
+            for (int tried = 0; tried < readers.size(); ) {
+                MessageReader reader = readers.get(pollIndex);
+                Message message = reader.readMessage();
+                if (message != null) {
+                    if ((++count & 0x3f) == 0) { // change buffer every 64 messages
+                        pollIndex = (pollIndex + 1) % readers.size();
+
+                        if (Constants.ENABLE_MESSAGE_SAMPLING) {
+                            // FOR DEBUG: Sample and print message every 2^17 (~131K) messages
+                            if ((count & 0x1ffff) == 0) {
+                                logger.info("Sampled message: {}", message.toString());
+                            }
+                        }
+                    }
+                    return message;
+                }
+                if (reader.isFinished()) {
+                    retire(readers.remove(pollIndex));
+                    if (readers.isEmpty()) return null;
+                    pollIndex = pollIndex % readers.size();
+                } else {
+                    // Followed, nothing more is written yet
+                    pollIndex = (pollIndex + 1) % readers.size();
+                    tried++;
+                }
+            }
+            if (timedOut(start)) return null;
+            waitStrategy.idle(idle++);
+        }
+        return null;
+    }
+
+    private boolean timedOut(long start) {
+        return pollTimeoutNanos > 0 && System.nanoTime() - start >= pollTimeoutNanos;
+    }
+
+    /**
+     * Polls a run of messages, most of them from one bucket. Waits only until at least one message is ready.
+     *
+     * @param max most messages added
+     * @return number of messages added to {@code messages}, 0 once every bucket is read, or when following
+     * the buckets, once the poll timed out
+     */
+    public synchronized int poll(int max, List<Message> messages) {
+        if (fetchedIndex < fetched.size()) {
+            int taken = Math.min(max, fetched.size() - fetchedIndex);
+            for (int i = 0; i < taken; i++) {
+                messages.add(nextFetched());
+            }
+            return taken;
         }
-        if ((++count & 0x3f) == 0) { // change buffer every 64 messages
-            pollIndex = (pollIndex + 1) % readers.size();
-            
-            if (Constants.ENABLE_MESSAGE_SAMPLING) {
-                // FOR DEBUG: Sample and print message every 2^17 (~131K) messages
-                if ((count & 0x1ffff) == 0) {
-                    logger.info("Sampled message: {}", message.toString());
+        if (parallel) return pollTasks(max, messages);
+        final long start = System.nanoTime();
+        int added = 0;
+        int idle = 0;
+        int tried = 0; // Followed buckets in a row with nothing more written
+        while (added < max && !readers.isEmpty()) {
+            MessageReader reader = readers.get(pollIndex);
+            int read = reader.readMessages(messages, max - added);
+            added += read;
+            if (reader.isFinished()) {
+                retire(readers.remove(pollIndex));
+                if (pollIndex >= readers.size()) pollIndex = 0;
+            } else {
+                // The next run comes from the next bucket
+                pollIndex = (pollIndex + 1) % readers.size();
+                if (read > 0) {
+                    tried = 0;
+                } else if (++tried >= readers.size()) {
+                    if (added > 0 || timedOut(start)) break;
+                    waitStrategy.idle(idle++);
+                    tried = 0;
                 }
             }
         }
-        return message;
+        return added;
     }
 
-    @Override public Message poll(KeyValue properties) {
-        throw new UnsupportedOperationException("Unsupported");
+    private int pollTasks(int max, List<Message> messages) {
+        throwPendingFailure();
+        final long start = System.nanoTime();
+        int added = 0;
+        while (added == 0 && !tasks.isEmpty()) {
+            for (int tried = 0; tried < tasks.size() && added < max; ) {
+                ReaderTask task = tasks.get(pollIndex);
+                int drained = task.drainTo(messages, max - added);
+                if (drained > 0 && messages.get(messages.size() - 1) == ReaderTask.END) {
+                    messages.remove(messages.size() - 1);
+                    added += drained - 1;
+                    tasks.remove(pollIndex);
+                    retire(task.getReader());
+                    if (pollIndex >= tasks.size()) pollIndex = 0;
+                    if (task.getFailure() != null) {
+                        pendingFailure = new ClientOMSException("Reading bucket failed: " + task.getReader().getBucket(), task.getFailure());
+                        if (added > 0) return added;
+                        throwPendingFailure();
+                    }
+                } else {
+                    added += drained;
+                    pollIndex = (pollIndex + 1) % tasks.size();
+                    tried++;
+                }
+            }
+            if (added == 0 && !tasks.isEmpty()) {
+                if (timedOut(start)) break;
+                awaitTasks();
+            }
+        }
+        return added;
+    }
+
+    private void throwPendingFailure() {
+        ClientOMSException failure = pendingFailure;
+        if (failure == null) return;
+        pendingFailure = null;
+        throw failure;
+    }
+
+    private Message pollTasks() {
+        throwPendingFailure();
+        final long start = System.nanoTime();
+        while (!tasks.isEmpty()) {
+            for (int tried = 0; tried < tasks.size(); ) {
+                ReaderTask task = tasks.get(pollIndex);
+                Message message = task.poll();
+                if (message == ReaderTask.END) {
+                    tasks.remove(pollIndex);
+                    retire(task.getReader());
+                    if (pollIndex >= tasks.size()) pollIndex = 0;
+                    if (task.getFailure() != null) {
+                        throw new ClientOMSException("Reading bucket failed: " + task.getReader().getBucket(), task.getFailure());
+                    }
+                } else if (message != null) {
+                    if ((++count & 0x3f) == 0) pollIndex = (pollIndex + 1) % tasks.size();
+                    return message;
+                } else {
+                    pollIndex = (pollIndex + 1) % tasks.size();
+                    tried++;
+                }
+            }
+            if (timedOut(start)) return null;
+            awaitTasks();
+        }
+        return null;
+    }
+
+    // Nothing decoded yet, checked again once registered so that no wake-up is missed
+    private void awaitTasks() {
+        waiter = Thread.currentThread();
+        if (!anyReady()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        waiter = null;
+    }
+
+    private boolean anyReady() {
+        for (ReaderTask task : tasks) {
+            if (task.isReady()) return true;
+        }
+        return false;
+    }
+
+    private void wakeUp() {
+        Thread thread = waiter;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops the reader tasks and releases the windows of every bucket attached. Polls return null afterwards.
+     */
+    public synchronized void shutdown() {
+        for (ReaderTask task : tasks) {
+            task.shutdown();
+            retire(task.getReader());
+        }
+        tasks.clear();
+        for (MessageReader reader : readers) {
+            retire(reader);
+        }
+        readers.clear();
+        pollIndex = 0;
+        pendingFailure = null;
+        fetched.clear();
+        fetchedIndex = 0;
+    }
+
+    private void retire(MessageReader reader) {
+        reader.close();
+        corruptedRecords += reader.getCorruptedRecords();
+        skippedRecords += reader.getSkippedRecords();
+    }
+
+    /**
+     * @return number of records rejected by their checksum so far
+     */
+    public synchronized long getCorruptedRecords() {
+        long total = corruptedRecords;
+        for (MessageReader reader : readers) {
+            total += reader.getCorruptedRecords();
+        }
+        for (ReaderTask task : tasks) {
+            total += task.getReader().getCorruptedRecords();
+        }
+        return total;
+    }
+
+    /**
+     * @return number of records that were not delivered so far, corrupted ones included
+     */
+    public synchronized long getSkippedRecords() {
+        long total = skippedRecords;
+        for (MessageReader reader : readers) {
+            total += reader.getSkippedRecords();
+        }
+        for (ReaderTask task : tasks) {
+            total += task.getReader().getSkippedRecords();
+        }
+        return total;
+    }
+
+    /**
+     * Pulls a batch when {@code properties} set {@link Constants#POLL_MAX_MESSAGES}: up to that many messages are
+     * fetched by {@link #poll(int, List)}, the first one is returned and the next polls of any kind return the
+     * others. Otherwise the same as {@link #poll()}.
+     */
+    @Override public synchronized Message poll(KeyValue properties) {
+        int max = KeyValues.getInt(properties, Constants.POLL_MAX_MESSAGES, 1);
+        if (max <= 1 || fetchedIndex < fetched.size()) return poll();
+        fetched.clear();
+        fetchedIndex = 0;
+        if (poll(max, fetched) == 0) return null;
+        return nextFetched();
+    }
+
+    private Message nextFetched() {
+        Message message = fetched.get(fetchedIndex);
+        fetched.set(fetchedIndex++, null);
+        return message;
     }
 
     @Override public void ack(String messageId) {
@@ -68,9 +336,19 @@ public class DefaultPullConsumer implements PullConsumer {
     }
 
     @Override public synchronized void attachQueue(String queueName, Collection<String> topics) {
-        readers.add(new MessageReader(queueName, true, bufferService, deserializer));
+        attach(new MessageReader(queueName, true, bufferService, serializer, follow));
         for (String topic: topics) {
-            readers.add(new MessageReader(topic, false, bufferService, deserializer));
+            attach(new MessageReader(topic, false, bufferService, serializer, follow));
+        }
+    }
+
+    private void attach(MessageReader reader) {
+        if (!parallel) {
+            readers.add(reader);
+            return;
         }
+        ReaderTask task = new ReaderTask(reader, readerQueueCapacity, this::wakeUp, waitStrategy);
+        tasks.add(task);
+        task.start();
     }
 }
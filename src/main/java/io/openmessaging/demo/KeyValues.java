@@ -0,0 +1,40 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.KeyValue;
+
+/**
+ * Typed access to the optional settings in producer and consumer properties.
+ * Settings may be put either as strings or as numbers.
+ */
+public final class KeyValues {
+
+    private KeyValues() {
+    }
+
+    public static String getString(KeyValue properties, String key, String defaultValue) {
+        if (properties == null || !properties.containsKey(key)) return defaultValue;
+        return properties.getString(key);
+    }
+
+    public static boolean getBoolean(KeyValue properties, String key, boolean defaultValue) {
+        if (properties == null || !properties.containsKey(key)) return defaultValue;
+        return Boolean.parseBoolean(properties.getString(key));
+    }
+
+    public static long getLong(KeyValue properties, String key, long defaultValue) {
+        if (properties == null || !properties.containsKey(key)) return defaultValue;
+        try {
+            return Long.parseLong(properties.getString(key));
+        } catch (ClassCastException ex) {
+            try {
+                return properties.getLong(key);
+            } catch (ClassCastException notLong) {
+                return properties.getInt(key);
+            }
+        }
+    }
+
+    public static int getInt(KeyValue properties, String key, int defaultValue) {
+        return (int) getLong(properties, key, defaultValue);
+    }
+}
@@ -0,0 +1,41 @@
+package io.openmessaging.demo;
+
+/**
+ * Naming of the files of a bucket.
+ * <p>
+ * A bucket is a directory of segment files, each at most {@link Constants#SEGMENT_SIZE} bytes long
+ * and named by its base offset, the bucket offset of its first byte. Records never cross segments.
+ * The directory also holds the key dictionary of the bucket.
+ */
+public final class Segments {
+
+    private static final String NAME_FORMAT = "%020d";
+
+    public static final String DICTIONARY_FILE_NAME = "keys";
+
+    private Segments() {
+    }
+
+    public static String fileName(long baseOffset) {
+        return String.format(NAME_FORMAT, baseOffset);
+    }
+
+    /**
+     * @return the base offset of a segment file name, or -1 if it is not a segment file
+     */
+    public static long parseFileName(String fileName) {
+        if (fileName.length() != 20) return -1;
+        try {
+            return Long.parseLong(fileName);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the base offset of the segment containing a bucket offset
+     */
+    public static long baseOffset(long offset) {
+        return offset - offset % Constants.SEGMENT_SIZE;
+    }
+}
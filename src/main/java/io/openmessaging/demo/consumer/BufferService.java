@@ -1,19 +1,42 @@
 package io.openmessaging.demo.consumer;
 
+import io.openmessaging.demo.Segments;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 /**
  * Buffer Service
  * <p>
+ * Maps read-only windows of the segment files. Readers of the same bucket, such as the consumers of a topic,
+ * share a single mapping of each window through {@link #acquire}, each with a buffer of its own. A window
+ * can be mapped and loaded ahead of time by a background allocator, and it is unmapped once its last
+ * reader releases it, without waiting for the garbage collector.
+ * <p>
+ * No file is kept open: a window stays mapped once its channel is closed, so every window is mapped through a
+ * channel of its own, closed right away. A reader following a bucket goes through many segments, none of them
+ * holds a file descriptor once read.
+ * <p>
  * Created by yfu on 5/27/17.
  */
 public class BufferService {
@@ -22,7 +45,14 @@ public class BufferService {
     private volatile static BufferService instance;
 
     private final String storePath;
-    private final HashMap<String, FileChannel> fileChannels = new HashMap<>(100);
+    // Windows acquired by readers, shared by the readers of the same file
+    private final HashMap<MappingKey, Mapping> mappings = new HashMap<>();
+
+    private final ExecutorService allocator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "read-buffer-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public BufferService(String storePath) {
         this.storePath = storePath;
@@ -42,30 +72,224 @@ public class BufferService {
         return instance;
     }
     
-    public ByteBuffer getBuffer(String bucket) {
-
-        FileChannel channel = fileChannels.get(bucket);
-        if (channel == null) {
-            synchronized (fileChannels) {
-                if ((channel = fileChannels.get(bucket)) == null) {
-                    try {
-                        channel = FileChannel.open(Paths.get(storePath, bucket), StandardOpenOption.READ);
-                    } catch (IOException ex) {
-                        throw new RuntimeException("File channel open file failed", ex);
-                    }
-                    fileChannels.put(bucket, channel);
-                }
+    /**
+     * @return the files of a bucket in offset order: its segments, or the bucket file itself
+     * for stores written before segments
+     */
+    public List<Path> getSegments(String bucket) {
+        Path path = Paths.get(storePath, bucket);
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path file : stream) {
+                long baseOffset = Segments.parseFileName(file.getFileName().toString());
+                if (baseOffset >= 0) segments.put(baseOffset, file);
             }
+        } catch (IOException ex) {
+            throw new RuntimeException("List segments failed", ex);
         }
+        return new ArrayList<>(segments.values());
+    }
 
-        MappedByteBuffer buffer;
+    public Path getDictionaryPath(String bucket) {
+        return Paths.get(storePath, bucket, Segments.DICTIONARY_FILE_NAME);
+    }
+
+    public long getSize(Path file) {
         try {
-            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Files.size(file);
+        } catch (IOException ex) {
+            throw new RuntimeException("File size failed", ex);
+        }
+    }
+
+    /**
+     * Maps a window of a segment file, from the page of {@code position} and at most {@code maxSize} bytes long
+     *
+     * @param position file offset the returned buffer is positioned at
+     */
+    public MappedByteBuffer getBuffer(Path file, long position, int maxSize) {
+        long mapStart = position & ~0xfffL;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long mapSize = Math.min(maxSize, channel.size() - mapStart);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapSize);
         } catch (IOException ex) {
             throw new RuntimeException("File channel open file failed", ex);
         }
-        
-        logger.info("Allocated MappedByteBuffer (read)  bucket={} size={}", bucket, buffer.limit());
+        buffer.position((int) (position - mapStart));
+
+        logger.info("Allocated MappedByteBuffer (read)  file={} map_start={} size={}", file, mapStart, buffer.limit());
         return buffer;
     }
+
+    /**
+     * Acquires a window of a segment file shared by every reader of the file, mapping it on first use.
+     * Every acquisition must be released once, the window is unmapped when the last one is.
+     *
+     * @param start    page aligned file offset of the window
+     * @param prefetch map the window and load it into memory in the background, so that reading it
+     *                 sequentially does not fault page after page; otherwise it is mapped on first access
+     */
+    public Mapping acquire(Path file, long start, int maxSize, boolean prefetch) {
+        MappingKey key = new MappingKey(file, start, maxSize);
+        Mapping mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(key);
+            if (mapping == null) {
+                mapping = new Mapping(key, new FutureTask<>(() -> {
+                    MappedByteBuffer buffer = getBuffer(file, start, maxSize);
+                    if (prefetch) buffer.load();
+                    return buffer;
+                }));
+                mappings.put(key, mapping);
+                if (prefetch) allocator.execute(mapping.task);
+            }
+            mapping.references++;
+        }
+        return mapping;
+    }
+
+    /**
+     * Releases an acquisition of a window
+     *
+     * @param unmap false if views of the window may outlive the acquisition, it is then left to the garbage collector
+     */
+    public void release(Mapping mapping, boolean unmap) {
+        synchronized (mappings) {
+            if (!unmap) mapping.pinned = true;
+            if (--mapping.references > 0) return;
+            mappings.remove(mapping.key);
+        }
+        // A window still being loaded is left to the garbage collector
+        if (!mapping.task.cancel(false) && !mapping.pinned) {
+            try {
+                unmap(mapping.task.get());
+            } catch (InterruptedException | ExecutionException ex) {
+                // Nothing was mapped
+            }
+        }
+    }
+
+    /**
+     * Unmaps a window returned by {@link #getBuffer} right away. Nothing may access the window, or any
+     * view of it, afterwards. Where the JVM offers no way to unmap, the window is left to the garbage collector.
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        Unmapper.unmap(buffer);
+    }
+
+    /**
+     * Window of a segment file shared by its readers
+     */
+    public static final class Mapping {
+        private final MappingKey key;
+        private final FutureTask<MappedByteBuffer> task;
+        private int references = 0; // guarded by the mappings of the service
+        private boolean pinned = false; // guarded by the mappings of the service
+
+        private Mapping(MappingKey key, FutureTask<MappedByteBuffer> task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * Maps the window if it is not yet, or waits for the background allocator mapping it
+         *
+         * @return a view of the window with a position of its own, at the start of the window
+         */
+        public ByteBuffer newBuffer() {
+            task.run(); // Does nothing once the allocator started it
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        ByteBuffer buffer = task.get().duplicate();
+                        buffer.position(0);
+                        return buffer;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+                        throw new RuntimeException("Mapping window failed", ex.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class MappingKey {
+        final Path file;
+        final long start;
+        final int maxSize;
+
+        MappingKey(Path file, long start, int maxSize) {
+            this.file = file;
+            this.start = start;
+            this.maxSize = maxSize;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof MappingKey)) return false;
+            MappingKey other = (MappingKey) o;
+            return start == other.start && maxSize == other.maxSize && file.equals(other.file);
+        }
+
+        @Override public int hashCode() {
+            return (file.hashCode() * 31 + Long.hashCode(start)) * 31 + maxSize;
+        }
+    }
+
+    // Reaches the cleaner of a mapped buffer: Unsafe.invokeCleaner since Java 9, DirectBuffer.cleaner before
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+        private static final Method CLEANER;
+        private static final Method CLEAN;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            Method cleaner = null;
+            Method clean = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                invokeCleaner = null;
+                try {
+                    cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                    clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                } catch (ReflectiveOperationException | RuntimeException ex2) {
+                    logger.warn("Mapped buffers cannot be unmapped, they are left to the garbage collector", ex2);
+                    cleaner = null;
+                    clean = null;
+                }
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+            CLEANER = cleaner;
+            CLEAN = clean;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else if (CLEANER != null) {
+                    Object cleaner = CLEANER.invoke(buffer);
+                    if (cleaner != null) CLEAN.invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.warn("Unmapping buffer failed, it is left to the garbage collector", ex);
+            }
+        }
+    }
 }
@@ -2,32 +2,345 @@ package io.openmessaging.demo.consumer;
 
 import io.openmessaging.Message;
 import io.openmessaging.MessageHeader;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.Segments;
+import io.openmessaging.demo.serializer.CorruptRecordException;
+import io.openmessaging.demo.serializer.FileHeader;
+import io.openmessaging.demo.serializer.KeyDictionary;
+import io.openmessaging.demo.serializer.LegacyMessageSerializer;
+import io.openmessaging.demo.serializer.MessageDeserializer;
 import io.openmessaging.demo.serializer.MessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 
 /**
+ * Reads the messages of one bucket, segment after segment. Each segment is read through fixed windows,
+ * {@link Constants#READ_BUFFER_SIZE} apart, that extend {@link Constants#MAX_BATCH_SIZE} into the next one
+ * so that a record starting in a window always fits in it. The windows are shared with the other readers of
+ * the bucket through {@link BufferService#acquire}. While a window is read the next one is mapped and loaded in
+ * the background, and a window read to its end is released right away, so it is unmapped once no reader uses it.
+ * Lazy messages may still refer to the window they were read from, readers of lazy messages leave it mapped.
+ * <p>
+ * A reader following the bucket reads it while it is written, up to the committed position the writer
+ * publishes in the header of the segment. Nothing ready to read is then not the end of the bucket: that
+ * is reached once the last segment has an end position, recorded when the writer closes it.
+ *
  * Created by yfu on 5/30/17.
  */
 public class MessageReader {
+    private static final Logger logger = LoggerFactory.getLogger(MessageReader.class);
+
+    private static final int WINDOW_SIZE = Constants.READ_BUFFER_SIZE + Constants.MAX_BATCH_SIZE;
 
     private final String bucket;
     private final boolean isQueue;
-    private final ByteBuffer buffer;
-    private final MessageSerializer deserializer;
+    private final BufferService bufferService;
+    private final MessageSerializer.Deserializer recordDeserializer;
+    private final boolean follow;
+    private List<Path> segments;
+    private KeyDictionary dictionary; // Opened by the first segment with a header
+
+    private int segmentIndex = -1;
+    private long segmentSize;
+    private MessageDeserializer deserializer;
+    private BufferService.Mapping window;
+    private ByteBuffer buffer; // Own view of the window
+    private long bufferStart; // Segment file offset of the buffer
+    private boolean windowed; // False for legacy files, mapped whole
+    private final boolean unmapConsumed;
+
+    // Window acquired ahead of the current one
+    private BufferService.Mapping prefetched;
+    private int prefetchedSegment;
+    private long prefetchedStart;
+
+    // Header of the segment followed
+    private BufferService.Mapping headerWindow;
+    private ByteBuffer header;
+
+    private boolean finished = false;
+    private long corruptedRecords = 0;
+    private long skippedRecords = 0;
+
+    /**
+     * @param serializer decodes the records, it may be shared by readers
+     */
+    public MessageReader(String bucket, boolean isQueue, BufferService bufferService, MessageSerializer serializer) {
+        this(bucket, isQueue, bufferService, serializer, false);
+    }
 
-    public MessageReader(String bucket, boolean isQueue, BufferService bufferService, MessageSerializer deserializer) {
+    /**
+     * @param follow read the bucket while it is written, it need not exist yet
+     */
+    public MessageReader(String bucket, boolean isQueue, BufferService bufferService, MessageSerializer serializer,
+                         boolean follow) {
         this.bucket = bucket;
         this.isQueue = isQueue;
-        this.buffer = bufferService.getBuffer(bucket);
-        this.deserializer = deserializer;
+        this.bufferService = bufferService;
+        this.recordDeserializer = serializer.newDeserializer();
+        this.unmapConsumed = !serializer.isLazy();
+        this.segments = follow ? listSegments() : bufferService.getSegments(bucket);
+        // A bucket written before segments is never appended to
+        boolean legacy = segments.size() == 1 && Segments.parseFileName(segments.get(0).getFileName().toString()) < 0;
+        this.follow = follow && !legacy;
+        if (!this.follow) openSegment(0);
+    }
+
+    // The segments written so far, none while the bucket does not exist
+    private List<Path> listSegments() {
+        List<Path> found = bufferService.getSegments(bucket);
+        return found.size() == 1 && !Files.exists(found.get(0)) ? Collections.<Path>emptyList() : found;
     }
 
+    private void openSegment(int index) {
+        Path segment = segments.get(index);
+        segmentIndex = index;
+        segmentSize = bufferService.getSize(segment);
+        mapWindow(0);
+        byte version = FileHeader.read(buffer);
+        if (version == FileHeader.LEGACY_VERSION) {
+            // Legacy records cannot be resumed at a window boundary, but legacy files never exceed 2 GB
+            releaseWindow();
+            window = bufferService.acquire(segment, 0, Integer.MAX_VALUE, false);
+            buffer = window.newBuffer();
+            windowed = false;
+            deserializer = new LegacyMessageSerializer();
+        } else {
+            if (dictionary == null) dictionary = KeyDictionary.open(bufferService.getDictionaryPath(bucket));
+            recordDeserializer.setDictionary(dictionary);
+            deserializer = recordDeserializer;
+            long endPosition = FileHeader.readEndPosition(buffer);
+            if (endPosition > 0) segmentSize = Math.min(segmentSize, endPosition);
+            windowed = true;
+        }
+        // Nothing is read from a followed segment before its committed position
+        if (follow) buffer.limit(buffer.position());
+        prefetchNext();
+    }
+
+    /**
+     * @return the next message, or null if there is none: the bucket is read to its end, or when
+     * following it, nothing more is written yet. See {@link #isFinished()}
+     */
     public Message readMessage() {
-        Message message = deserializer.read(buffer);
+        if (follow) return readCommitted();
+        Message message = read();
+        while (message == null) {
+            long position = bufferStart + buffer.position();
+            long windowStart = position - position % Constants.READ_BUFFER_SIZE;
+            if (windowed && windowStart != bufferStart && windowStart < segmentSize) {
+                // The next record starts in the next window
+                mapWindow(windowStart);
+                buffer.position((int) (position - windowStart));
+                prefetchNext();
+                message = read();
+                if (message != null) break;
+            }
+            if (segmentIndex + 1 == segments.size()) {
+                finished = true;
+                return null;
+            }
+            openSegment(segmentIndex + 1);
+            message = read();
+        }
+        return message;
+    }
+
+    private Message readCommitted() {
+        if (header == null && !openNextSegment()) return null;
+        long stalled = -1; // Position a committed record was not read at
+        while (true) {
+            // The rest of a batch first, then the records up to the committed position seen last
+            Message message = read();
+            if (message != null) return message;
+            long endPosition = FileHeader.readEndPosition(header);
+            long committed = FileHeader.readCommittedPosition(header);
+            if (committed == 0) committed = endPosition; // Written before the position was published
+            long position = bufferStart + buffer.position();
+            if (position >= committed && position < endPosition && isLastSegment()) {
+                // The bucket is closed, everything before its end is written even if the last commit was
+                // not published. A segment rolled over is not: its end is recorded before its last commits
+                committed = endPosition;
+            }
+            if (position < committed) {
+                if (position == stalled) {
+                    throw new IllegalStateException("Committed record unreadable  bucket=" + bucket
+                            + " segment=" + segments.get(segmentIndex) + " position=" + position);
+                }
+                stalled = position;
+                long windowStart = position - position % Constants.READ_BUFFER_SIZE;
+                long readable = Math.min(committed, windowStart + WINDOW_SIZE);
+                if (windowStart != bufferStart || bufferStart + buffer.capacity() < readable) {
+                    // The next record starts in the next window, or was appended past the end of the mapping
+                    mapWindow(windowStart);
+                    buffer.position((int) (position - windowStart));
+                }
+                // Records being written after the committed position are not read
+                buffer.limit((int) (readable - bufferStart));
+                continue;
+            }
+            if (endPosition == 0 || position < endPosition) return null;
+            // The writer rolled over, or closed the bucket if there is no next segment
+            if (!openNextSegment()) {
+                finished = true;
+                return null;
+            }
+        }
+    }
+
+    // The writer maps the next segment before recording the end of the current one, so a segment with an end
+    // and no next one was closed
+    private boolean isLastSegment() {
+        if (segmentIndex + 1 < segments.size()) return false;
+        segments = listSegments();
+        return segmentIndex + 1 == segments.size();
+    }
+
+    // Opens the segment after the current one once its header is written, @return false if it is not yet
+    private boolean openNextSegment() {
+        int next = segmentIndex + 1;
+        if (next == segments.size()) {
+            segments = listSegments();
+            if (next == segments.size()) return false;
+        }
+        BufferService.Mapping nextHeader = bufferService.acquire(segments.get(next), 0, FileHeader.HEADER_SIZE, false);
+        ByteBuffer headerBuffer = nextHeader.newBuffer();
+        if (FileHeader.read(headerBuffer) == FileHeader.LEGACY_VERSION) {
+            // Created, but the header is not written yet
+            bufferService.release(nextHeader, true);
+            return false;
+        }
+        releaseHeader();
+        headerWindow = nextHeader;
+        header = headerBuffer;
+        openSegment(next);
+        return true;
+    }
+
+    /**
+     * Reads a run of messages
+     *
+     * @return number of messages added, less than {@code max} once the bucket is read to its end or, when
+     * following it, nothing more is written yet
+     */
+    public int readMessages(List<Message> messages, int max) {
+        int count = 0;
+        Message message;
+        while (count < max && (message = readMessage()) != null) {
+            messages.add(message);
+            count++;
+        }
+        return count;
+    }
+
+    private Message read() {
+        Message message;
+        while (true) {
+            try {
+                message = deserializer.read(buffer);
+                break;
+            } catch (CorruptRecordException ex) {
+                if (ex.isChecksumMismatch()) corruptedRecords++;
+                skippedRecords++;
+                logger.warn("Skipped record  bucket={} reason={}", bucket, ex.getMessage());
+            }
+        }
         if (message == null) return null;
         message.putHeaders(isQueue ? MessageHeader.QUEUE : MessageHeader.TOPIC, bucket);
         return message;
     }
 
+    // Replaces the current window by the one of the current segment starting at start, positioned at 0
+    private void mapWindow(long start) {
+        releaseWindow();
+        if (prefetched != null && prefetchedSegment == segmentIndex && prefetchedStart == start) {
+            window = prefetched;
+            prefetched = null;
+        } else {
+            window = bufferService.acquire(segments.get(segmentIndex), start, windowSize(segmentIndex, start), false);
+        }
+        buffer = window.newBuffer();
+        bufferStart = start;
+    }
+
+    // Size of a window mapped now, the same for every reader of the segment so that they share it
+    private int windowSize(int segment, long start) {
+        return (int) Math.min(WINDOW_SIZE, bufferService.getSize(segments.get(segment)) - start);
+    }
+
+    // Maps and loads the window read after the current one, in this segment or at the start of the next.
+    // A followed bucket is read right after it is written, nothing is left to load
+    private void prefetchNext() {
+        if (follow) return;
+        if (windowed && bufferStart + Constants.READ_BUFFER_SIZE < segmentSize) {
+            prefetch(segmentIndex, bufferStart + Constants.READ_BUFFER_SIZE);
+        } else if (segmentIndex + 1 < segments.size()) {
+            prefetch(segmentIndex + 1, 0);
+        }
+    }
+
+    private void prefetch(int segment, long start) {
+        discardPrefetched();
+        prefetched = bufferService.acquire(segments.get(segment), start, windowSize(segment, start), true);
+        prefetchedSegment = segment;
+        prefetchedStart = start;
+    }
+
+    private void discardPrefetched() {
+        if (prefetched != null) bufferService.release(prefetched, unmapConsumed);
+        prefetched = null;
+    }
+
+    private void releaseWindow() {
+        if (window != null) bufferService.release(window, unmapConsumed);
+        window = null;
+        buffer = null;
+    }
+
+    private void releaseHeader() {
+        if (headerWindow != null) bufferService.release(headerWindow, true);
+        headerWindow = null;
+        header = null;
+    }
+
+    /**
+     * Releases the windows of the reader, which must not be used afterwards
+     */
+    public void close() {
+        discardPrefetched();
+        releaseWindow();
+        releaseHeader();
+    }
+
+    /**
+     * @return true once the bucket is read to its end, after which no message is read
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return number of records rejected by their checksum
+     */
+    public long getCorruptedRecords() {
+        return corruptedRecords;
+    }
+
+    /**
+     * @return number of records that were not delivered, corrupted ones included
+     */
+    public long getSkippedRecords() {
+        return skippedRecords;
+    }
+
 }
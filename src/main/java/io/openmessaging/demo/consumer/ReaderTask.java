@@ -0,0 +1,132 @@
+package io.openmessaging.demo.consumer;
+
+import io.openmessaging.Message;
+import io.openmessaging.demo.DefaultBytesMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads one bucket on its own thread into a bounded queue, ahead of the consumer polling it.
+ * <p>
+ * The queue keeps the order of the bucket. Once the bucket is read to its end, or reading it
+ * failed, the queue ends with {@link #END}. The thread waits while the queue is full, and by the
+ * wait strategy while a followed bucket has nothing more written, until {@link #shutdown()} stops it.
+ * It is never interrupted, an interrupt would close the file channels shared with the other readers.
+ */
+public class ReaderTask extends Thread {
+    private static final Logger logger = LoggerFactory.getLogger(ReaderTask.class);
+
+    // Last element of the queue
+    public static final Message END = new DefaultBytesMessage(new byte[0]);
+
+    private final MessageReader reader;
+    private final BlockingQueue<Message> queue;
+    // Told whenever a message is queued
+    private final Runnable onQueued;
+    private final WaitStrategy waitStrategy;
+
+    private volatile RuntimeException failure;
+    // Set by shutdown, the task then stops without queueing the end
+    private volatile boolean stopped = false;
+
+    public ReaderTask(MessageReader reader, int queueCapacity, Runnable onQueued, WaitStrategy waitStrategy) {
+        super("bucket-reader-" + reader.getBucket());
+        setDaemon(true);
+        this.reader = reader;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.onQueued = onQueued;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override public void run() {
+        try {
+            int idle = 0;
+            while (!stopped) {
+                Message message = reader.readMessage();
+                if (message == null) {
+                    if (reader.isFinished()) break;
+                    waitStrategy.idle(idle++);
+                    continue;
+                }
+                idle = 0;
+                if (!put(message)) break;
+                onQueued.run();
+            }
+            if (stopped) return;
+        } catch (InterruptedException ex) {
+            failure = new IllegalStateException("Reader interrupted", ex);
+        } catch (RuntimeException ex) {
+            logger.error("Reading bucket failed  bucket={}", reader.getBucket(), ex);
+            failure = ex;
+        }
+        while (true) {
+            try {
+                put(END); // Unless stopped meanwhile
+                break;
+            } catch (InterruptedException ex) {
+                // The consumer must see the end
+            }
+        }
+        onQueued.run();
+    }
+
+    // @return false if the task was stopped while the queue was full
+    private boolean put(Message message) throws InterruptedException {
+        while (!stopped) {
+            if (queue.offer(message, 10, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops reading and waits for the thread to end. The reader is left open, to be closed by the caller.
+     */
+    public void shutdown() {
+        stopped = true;
+        LockSupport.unpark(this); // Parked by the wait strategy
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return the next message of the bucket, {@link #END} after the last one, or null if none is ready
+     */
+    public Message poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Moves the messages ready, at most {@code max}, the last one may be {@link #END}
+     *
+     * @return number of messages moved
+     */
+    public int drainTo(List<Message> messages, int max) {
+        return queue.drainTo(messages, max);
+    }
+
+    public boolean isReady() {
+        return !queue.isEmpty();
+    }
+
+    // Why the bucket was not read to its end, null if it was
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    public MessageReader getReader() {
+        return reader;
+    }
+}
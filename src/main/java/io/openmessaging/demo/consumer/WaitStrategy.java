@@ -0,0 +1,68 @@
+package io.openmessaging.demo.consumer;
+
+import io.openmessaging.demo.ClientOMSException;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a consumer following buckets waits for records that are not written yet
+ */
+public final class WaitStrategy {
+
+    public enum Kind {
+        // Tries again right away, the lowest latency at the cost of a core
+        SPIN,
+        // Yields the core between attempts
+        YIELD,
+        // Parks for the park time between attempts
+        PARK,
+        // Spins, then yields, then parks, starting over once a record arrives
+        BACKOFF;
+
+        public static Kind parse(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new ClientOMSException("Unknown wait strategy: " + name);
+            }
+        }
+    }
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+
+    private final Kind kind;
+    private final long parkNanos;
+
+    public WaitStrategy(Kind kind, long parkNanos) {
+        this.kind = kind;
+        this.parkNanos = parkNanos;
+    }
+
+    /**
+     * Waits before the next attempt
+     *
+     * @param attempt number of attempts that found nothing since the last record
+     */
+    public void idle(int attempt) {
+        switch (kind) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(parkNanos);
+                break;
+            case BACKOFF:
+                if (attempt < SPINS) break;
+                if (attempt < SPINS + YIELDS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                }
+                break;
+        }
+    }
+}
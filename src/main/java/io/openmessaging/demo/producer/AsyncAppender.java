@@ -0,0 +1,239 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.Message;
+import io.openmessaging.demo.ClientOMSException;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.DefaultPromise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends messages handed off by asynchronous sends.
+ * <p>
+ * Every worker drains its own bounded queue. A bucket is always served by the same worker, so
+ * the messages sent asynchronously to a bucket are appended in the order of the sends. A full
+ * queue fails the send at once instead of blocking the caller.
+ * <p>
+ * Buckets are assigned to the workers in turn as they are first sent to, so no two of them share
+ * a worker as long as there are no more buckets than workers. The traffic of one bucket still goes through a single queue:
+ * a burst to one hot bucket fails sends once that queue is full, however idle the other workers
+ * are, so the queue capacity must cover the largest burst to a single bucket.
+ */
+public class AsyncAppender {
+    private static Logger logger = LoggerFactory.getLogger(AsyncAppender.class);
+
+    // Most messages appended before their promises are completed
+    private static final int MAX_BATCH = 256;
+
+    private final BucketManager bucketManager;
+    private final int workerCount;
+    private final int queueCapacity;
+    private final boolean durable;
+
+    private volatile Worker[] workers; // Started by the first send
+    // Worker of every bucket sent to so far
+    private final ConcurrentHashMap<String, Worker> assignments = new ConcurrentHashMap<>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean running = true;
+    // Senders past the running check, shutdown waits for them before stopping the workers
+    private final AtomicInteger senders = new AtomicInteger();
+    // Set once no sender can queue any more, the workers then stop when their queues are empty
+    private volatile boolean stopping = false;
+
+    /**
+     * @param durable complete the promises once the records are forced to disk, not once appended
+     */
+    public AsyncAppender(BucketManager bucketManager, int workerCount, int queueCapacity, boolean durable) {
+        this.bucketManager = bucketManager;
+        this.workerCount = workerCount;
+        this.queueCapacity = queueCapacity;
+        this.durable = durable;
+    }
+
+    /**
+     * The message must not be modified until the promise is done
+     *
+     * @return false if the queue of the bucket is full
+     */
+    public boolean submit(String bucket, Message message, DefaultPromise<Void> promise) {
+        senders.incrementAndGet();
+        try {
+            if (!running) throw new ClientOMSException("Store is closed");
+            Worker worker = assignments.get(bucket);
+            if (worker == null) worker = assign(bucket);
+            return worker.queue.offer(new Request(bucket, message, promise));
+        } finally {
+            senders.decrementAndGet();
+        }
+    }
+
+    private Worker assign(String bucket) {
+        Worker[] current = getWorkers();
+        return assignments.computeIfAbsent(bucket,
+                key -> current[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % current.length]);
+    }
+
+    private Worker[] getWorkers() {
+        if (workers == null) {
+            synchronized (this) {
+                if (workers == null) {
+                    Worker[] started = new Worker[workerCount];
+                    for (int i = 0; i < workerCount; i++) {
+                        started[i] = new Worker(i);
+                        started[i].start();
+                    }
+                    workers = started;
+                    logger.info("Started append workers  workers={} queue_capacity={} durable={}", workerCount, queueCapacity, durable);
+                }
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Returns once every message submitted before the call is appended, or has failed
+     */
+    public void awaitAppended() {
+        Worker[] current = workers;
+        if (current == null) return;
+        List<DefaultPromise<Void>> barriers = new ArrayList<>(current.length);
+        try {
+            for (Worker worker : current) {
+                // Queued behind the messages submitted so far, it completes once they are appended
+                DefaultPromise<Void> barrier = new DefaultPromise<>();
+                while (!worker.queue.offer(new Request(null, null, barrier), 10, TimeUnit.MILLISECONDS)) {
+                    if (!running) return; // Stopping, the workers append what is left
+                }
+                barriers.add(barrier);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (DefaultPromise<Void> barrier : barriers) {
+            try {
+                barrier.get();
+            } catch (ClientOMSException ex) {
+                // Failed by a durable flush or by the shutdown, the messages before it are done
+            }
+        }
+    }
+
+    /**
+     * Appends everything submitted so far and stops the workers
+     */
+    public void shutdown() {
+        running = false;
+        // A sender that passed the check before may still be queueing, the workers must see its request.
+        // Not under the monitor, such a sender may be starting the workers
+        while (senders.get() > 0) {
+            LockSupport.parkNanos(10_000);
+        }
+        stopping = true;
+        synchronized (this) {
+            if (workers == null) return;
+            for (Worker worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            // Barriers queued by awaitAppended while the workers were stopping
+            List<Request> rejected = new ArrayList<>();
+            for (Worker worker : workers) {
+                worker.queue.drainTo(rejected);
+            }
+            for (Request request : rejected) {
+                request.promise.setFailure(new ClientOMSException("Store is closed"));
+            }
+        }
+    }
+
+    private static final class Request {
+        final String bucket;
+        final Message message;
+        final DefaultPromise<Void> promise;
+
+        Request(String bucket, Message message, DefaultPromise<Void> promise) {
+            this.bucket = bucket;
+            this.message = message;
+            this.promise = promise;
+        }
+    }
+
+    private final class Worker extends Thread {
+        final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final ByteBuffer localBuffer = ByteBuffer.allocate(Constants.MAX_RECORD_SIZE);
+
+        Worker(int index) {
+            super("append-worker-" + index);
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            List<Request> batch = new ArrayList<>(MAX_BATCH);
+            Set<String> appended = new HashSet<>();
+            // Never interrupted: an interrupt would close the channels being mapped
+            while (!stopping || !queue.isEmpty()) {
+                try {
+                    Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (int i = 0; i < batch.size(); i++) {
+                    Request request = batch.get(i);
+                    if (!request.promise.setUncancellable()) {
+                        batch.set(i, null);
+                        continue;
+                    }
+                    if (request.message == null) continue; // Barrier, completed with the batch
+                    try {
+                        bucketManager.putMessage(request.bucket, request.message, localBuffer);
+                        appended.add(request.bucket);
+                    } catch (RuntimeException ex) {
+                        request.promise.setFailure(ex);
+                        batch.set(i, null);
+                    }
+                }
+                RuntimeException flushFailure = null;
+                if (durable) {
+                    // One force per bucket for the whole batch
+                    try {
+                        for (String bucket : appended) {
+                            bucketManager.flush(bucket);
+                        }
+                    } catch (RuntimeException ex) {
+                        flushFailure = ex;
+                    }
+                }
+                for (Request request : batch) {
+                    if (request == null) continue;
+                    if (flushFailure == null) {
+                        request.promise.set(null);
+                    } else {
+                        request.promise.setFailure(flushFailure);
+                    }
+                }
+                batch.clear();
+                appended.clear();
+            }
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package io.openmessaging.demo.producer;
 
+import io.openmessaging.KeyValue;
 import io.openmessaging.Message;
+import io.openmessaging.demo.ClientOMSException;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.KeyValues;
+import io.openmessaging.demo.serializer.Codec;
+import io.openmessaging.demo.serializer.Codecs;
+import io.openmessaging.demo.serializer.MessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Managers of all buckets
@@ -19,38 +30,190 @@ public class BucketManager {
     private volatile static BucketManager instance;
 
     private final BufferService bufferService;
+    private final boolean checksum;
+    private final Codec codec;
+    private final Flusher flusher;
+    private final AsyncAppender asyncAppender;
+    private final OnewayAppender onewayAppender;
+    private ScheduledExecutorService lingerTimer; // guarded by bucketMap
     
-    private final HashMap<String, BucketWriter> bucketMap = new HashMap<>();
+    private final String storePath;
+    private final ConcurrentHashMap<String, BucketWriter> bucketMap = new ConcurrentHashMap<>();
+
+    private int producers = 0; // guarded by bucketMap
+    private boolean closing = false; // guarded by bucketMap
+    private volatile boolean closed = false;
     
-    public BucketManager(String storePath) {
+    public BucketManager(KeyValue properties) {
+        storePath = properties.getString(Constants.STORE_PATH);
         bufferService = new BufferService(storePath);
+        checksum = KeyValues.getBoolean(properties, Constants.RECORD_CHECKSUM, false);
+        codec = Codecs.forName(KeyValues.getString(properties, Constants.COMPRESSION_CODEC, "none"));
+        flusher = new Flusher(FlushPolicy.parse(KeyValues.getString(properties, Constants.FLUSH_POLICY, "none")),
+                KeyValues.getLong(properties, Constants.FLUSH_INTERVAL_MS, 1000),
+                KeyValues.getLong(properties, Constants.FLUSH_BYTES, 64 * 1024 * 1024),
+                bucketMap.values());
+        asyncAppender = new AsyncAppender(this,
+                KeyValues.getInt(properties, Constants.ASYNC_WORKERS, Runtime.getRuntime().availableProcessors()),
+                KeyValues.getInt(properties, Constants.ASYNC_QUEUE_CAPACITY, 4096),
+                KeyValues.getBoolean(properties, Constants.ASYNC_DURABLE, false));
+        onewayAppender = new OnewayAppender(this,
+                KeyValues.getInt(properties, Constants.ONEWAY_RING_CAPACITY, 64 * 1024),
+                OnewayAppender.Backpressure.parse(KeyValues.getString(properties, Constants.ONEWAY_BACKPRESSURE, "block")));
         
         // In case the storePath does not exist
         Paths.get(storePath).toFile().mkdirs();
     }
     
-    public static BucketManager getInstance(String storePath) {
+    // The first producer's properties configure the store of the whole process
+    public static BucketManager getInstance(KeyValue properties) {
         if (instance == null) {
             synchronized (BucketManager.class) {
                 if (instance == null) {
-                    instance = new BucketManager(storePath);
+                    instance = new BucketManager(properties);
                 }
             }
         }
         return instance;
     }
     
+    /**
+     * Registers a producer, the store is closed when the last one is released
+     */
+    public void retain() {
+        synchronized (bucketMap) {
+            if (closing) throw new ClientOMSException("Store is closed: " + storePath);
+            producers++;
+        }
+    }
+
+    public void release() {
+        synchronized (bucketMap) {
+            if (--producers > 0 || closing) return;
+            closing = true;
+        }
+        try {
+            // Outside the lock, the workers may still create buckets
+            asyncAppender.shutdown();
+            onewayAppender.shutdown();
+            synchronized (bucketMap) {
+                closed = true;
+                if (lingerTimer != null) lingerTimer.shutdown();
+                flusher.shutdown();
+                bufferService.shutdown();
+                RuntimeException failure = null;
+                for (BucketWriter writer : bucketMap.values()) {
+                    try {
+                        writer.close();
+                    } catch (RuntimeException ex) {
+                        // The other buckets are still closed
+                        logger.error("Closing bucket failed", ex);
+                        if (failure == null) failure = ex;
+                    }
+                }
+                logger.info("Closed store  path={} buckets={} {}", storePath, bucketMap.size(), getFlushStats());
+                if (failure != null) throw failure;
+            }
+        } finally {
+            // The next producer of the process opens a new store
+            synchronized (BucketManager.class) {
+                if (instance == this) instance = null;
+            }
+        }
+    }
+
+    // Forces every record completely written so far to disk
+    public void flush() {
+        for (BucketWriter writer : bucketMap.values()) {
+            writer.flush();
+        }
+    }
+
+    public void flush(String bucket) {
+        BucketWriter writer = bucketMap.get(bucket);
+        if (writer != null) writer.flush();
+    }
+
+    public AsyncAppender getAsyncAppender() {
+        return asyncAppender;
+    }
+
+    public OnewayAppender getOnewayAppender() {
+        return onewayAppender;
+    }
+
+    // Flush counters summed over all buckets
+    public FlushStats getFlushStats() {
+        FlushStats total = new FlushStats();
+        for (BucketWriter writer : bucketMap.values()) {
+            total.add(writer.getFlushStats());
+        }
+        return total;
+    }
+
     public void putMessage(String bucket, Message message, ByteBuffer localBuffer) {
+        BucketWriter store = getWriter(bucket);
+        store.putMessage(message, localBuffer);
+        flusher.onAppend(store);
+    }
+
+    // Returns the number of messages appended, see BucketWriter.putMessages
+    public int putMessages(String bucket, Message[] messages, int count, ByteBuffer localBuffer) {
+        BucketWriter store = getWriter(bucket);
+        int appended = store.putMessages(messages, count, localBuffer);
+        flusher.onAppend(store);
+        return appended;
+    }
+
+    // Serializer of the records of a bucket, for producers accumulating records themselves
+    public MessageSerializer getSerializer(String bucket) {
+        return getWriter(bucket).getSerializer();
+    }
+
+    // Accumulated records are appended as batches, see putBatch, when they may be compressed
+    public boolean isCompressed() {
+        return codec != null;
+    }
+
+    /**
+     * Runs a task of a producer periodically on the linger timer, shared by all producers
+     */
+    public ScheduledFuture<?> scheduleLinger(Runnable task, long periodMillis) {
+        synchronized (bucketMap) {
+            if (lingerTimer == null) {
+                lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "linger-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return lingerTimer.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void putRecords(String bucket, ByteBuffer records) {
+        BucketWriter store = getWriter(bucket);
+        store.putRecords(records);
+        flusher.onAppend(store);
+    }
+
+    public void putBatch(String bucket, ByteBuffer batch, int count) {
+        BucketWriter store = getWriter(bucket);
+        store.putBatch(batch, count);
+        flusher.onAppend(store);
+    }
+
+    private BucketWriter getWriter(String bucket) {
+        if (closed) throw new ClientOMSException("Store is closed: " + storePath);
         BucketWriter store = bucketMap.get(bucket);
         if (store == null) {
             synchronized (bucketMap) {
                 if (!bucketMap.containsKey(bucket)) {
-                    bucketMap.put(bucket, new BucketWriter(bucket, bufferService));
+                    bucketMap.put(bucket, new BucketWriter(bucket, bufferService, checksum, codec));
                 }
             }
             store = bucketMap.get(bucket);
         }
-
-        store.putMessage(message, localBuffer);
+        return store;
     }
 }
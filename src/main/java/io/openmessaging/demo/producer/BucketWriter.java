@@ -1,47 +1,436 @@
 package io.openmessaging.demo.producer;
 
 import io.openmessaging.Message;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.Segments;
+import io.openmessaging.demo.serializer.Codec;
+import io.openmessaging.demo.serializer.Codecs;
+import io.openmessaging.demo.serializer.FileHeader;
+import io.openmessaging.demo.serializer.KeyDictionary;
 import io.openmessaging.demo.serializer.MessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Appends records to one bucket.
+ * <p>
+ * Space is reserved by a CAS on the write position, so producers only contend on the monitor
+ * when the mapped window is exhausted, or when the segment is full and the bucket rolls over to
+ * the next segment. The window after the current one is prefetched by the {@link BufferService},
+ * so moving to it is usually just swapping the window reference.
+ * <p>
+ * Records may complete out of order, the committed position is the offset up to which all of
+ * them are completely written. It is published in the header of the segment, so consumers can
+ * follow the bucket while it is written. {@link #flush()} forces the windows that may hold data not yet
+ * on disk; concurrent flushers share a force.
+ *
  * Created by yfu on 5/27/17.
  */
 public class BucketWriter {
     private static Logger logger = LoggerFactory.getLogger(BucketWriter.class);
 
+    // Smaller batches are appended uncompressed
+    private static final int MIN_COMPRESSED_SIZE = 512;
+
+    private static final ThreadLocal<ByteBuffer> COMPRESSION_BUFFER = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(MessageSerializer.maxCompressedBatchSize(Codecs.LZ4, Constants.MAX_BATCH_SIZE)));
+
+    // Retired windows kept for flush before they are forced in the background
+    private static final int MAX_UNFLUSHED_WINDOWS = 64;
+
     private final String name;
     private final BufferService bufferService;
 
-    private volatile ByteBuffer buffer;
+    // Bucket offset of the next record
+    private final AtomicLong writePosition;
+    // Bucket offset up to which all records are completely written
+    private final AtomicLong committedPosition;
+    // Records completely written ahead of the committed position, start -> end
+    private final ConcurrentSkipListMap<Long, Long> completed = new ConcurrentSkipListMap<>();
+
+    // Headers of the segments the committed position may still be published in, segment base offset -> window
+    private final TreeMap<Long, ByteBuffer> headers = new TreeMap<>(); // guarded by publishLock
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private volatile long publishedPosition; // written under publishLock
+
+    private volatile Window window;
 
-    private final MessageSerializer serializer = new MessageSerializer();
+    // The window after the current one, being mapped in the background
+    private Future<MappedByteBuffer> nextBuffer; // guarded by this
+
+    // Windows left behind which may hold data not forced to disk yet
+    private final ConcurrentLinkedQueue<Window> unflushed = new ConcurrentLinkedQueue<>();
+
+    private final Object flushLock = new Object();
+    private volatile long forceStarted = 0; // Number of forces started, written under flushLock
+    private long forceCompleted = 0; // guarded by flushLock
+    // Bucket offset up to which all records are on disk
+    private volatile long flushedPosition;
+    private final FlushStats flushStats = new FlushStats();
+
+    private final KeyDictionary dictionary;
+    private final MessageSerializer serializer;
+    private final Codec codec;
+
+    public BucketWriter(String name, BufferService bufferService, boolean checksum) {
+        this(name, bufferService, checksum, null);
+    }
 
-    public BucketWriter(String name, BufferService bufferService) {
+    /**
+     * @param codec compresses the batches appended to the bucket, null to store them as they are
+     */
+    public BucketWriter(String name, BufferService bufferService, boolean checksum, Codec codec) {
         this.name = name;
         this.bufferService = bufferService;
-        buffer = bufferService.getBuffer(name, 0);
+        this.codec = codec;
+        MappedByteBuffer buffer = bufferService.getBuffer(name, 0);
+        this.dictionary = KeyDictionary.create(bufferService.getDictionaryPath(name));
+        this.serializer = new MessageSerializer(checksum, false, dictionary);
+        FileHeader.write(buffer);
+        writePosition = new AtomicLong(buffer.position());
+        committedPosition = new AtomicLong(buffer.position());
+        flushedPosition = buffer.position();
+        publishedPosition = buffer.position();
+        headers.put(0L, buffer);
+        install(new Window(buffer, 0));
     }
 
     public void putMessage(Message message, ByteBuffer localBuffer) {
         localBuffer.clear();
         serializer.write(localBuffer, message);
         localBuffer.flip();
+        append(localBuffer);
+    }
+
+    /**
+     * Appends messages in order, as many records as fit in the local buffer are appended with
+     * a single reservation. With a codec they are appended as compressed batches.
+     * <p>
+     * It stops at the first message that fails, the failure is logged.
+     *
+     * @return number of messages appended, the first ones of the array
+     */
+    public int putMessages(Message[] messages, int count, ByteBuffer localBuffer) {
+        final int recordsStart = codec == null ? 0 : MessageSerializer.MAX_BATCH_HEADER_SIZE;
+        localBuffer.clear().position(recordsStart);
+        int appended = 0;
+        int records = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                int recordStart = localBuffer.position();
+                try {
+                    if (codec == null) {
+                        serializer.write(localBuffer, messages[i]);
+                    } else {
+                        serializer.writeBatched(localBuffer, messages[i]);
+                    }
+                    records++;
+                } catch (BufferOverflowException ex) {
+                    if (recordStart == recordsStart) throw ex; // Does not fit on its own
+                    localBuffer.position(recordStart);
+                    appendRecords(localBuffer, records);
+                    appended += records;
+                    localBuffer.clear().position(recordsStart);
+                    records = 0;
+                    i--;
+                }
+            }
+            if (records > 0) {
+                appendRecords(localBuffer, records);
+                appended += records;
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Appending messages failed  bucket={} appended={} count={}", name, appended, count, ex);
+        }
+        return appended;
+    }
+
+    private void appendRecords(ByteBuffer localBuffer, int count) {
+        localBuffer.flip();
+        if (codec == null) {
+            append(localBuffer);
+        } else {
+            putBatch(localBuffer, count);
+        }
+    }
+
+    /**
+     * Serializer numbering the keys of the bucket, it may be shared by threads writing records
+     */
+    public MessageSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Appends records serialized by {@link #getSerializer()} with a single reservation
+     *
+     * @param records at most {@link Constants#MAX_BATCH_SIZE} bytes of records between the position and the limit
+     */
+    public void putRecords(ByteBuffer records) {
+        append(records);
+    }
+
+    /**
+     * Appends a batch with a single reservation, compressed if a codec is set and it saves space.
+     * See {@link MessageSerializer#writeBatchHeader(ByteBuffer, int)}
+     */
+    public void putBatch(ByteBuffer batch, int count) {
+        if (codec != null) {
+            ByteBuffer records = batch.duplicate();
+            records.position(MessageSerializer.MAX_BATCH_HEADER_SIZE);
+            if (appendCompressed(records, count)) return;
+        }
+        serializer.writeBatchHeader(batch, count);
+        append(batch);
+    }
+
+    // @return false if the records are not worth compressing, nothing is appended then
+    private boolean appendCompressed(ByteBuffer records, int count) {
+        if (records.remaining() < MIN_COMPRESSED_SIZE) return false;
+        ByteBuffer compressed = COMPRESSION_BUFFER.get();
+        compressed.clear();
+        if (!serializer.writeCompressedBatch(compressed, records, count, codec)) return false;
+        compressed.flip();
+        append(compressed);
+        return true;
+    }
 
-        int messageSize = localBuffer.limit();
-        int messageOffset;
-        synchronized (this) {
-            if (messageSize > buffer.remaining()) {
-                buffer = bufferService.getBuffer(name, buffer.position());
+    // Appends the serialized records between the position and the limit of the local buffer
+    private void append(ByteBuffer localBuffer) {
+        final int messageSize = localBuffer.remaining();
+        Window current;
+        long messageOffset;
+        while (true) {
+            // The window is read before the position: any position reserved afterwards lies within it
+            current = window;
+            messageOffset = writePosition.get();
+            if (messageOffset + messageSize > current.end) {
+                remap(current, messageSize);
+            } else if (writePosition.compareAndSet(messageOffset, messageOffset + messageSize)) {
+                break;
             }
-            messageOffset = buffer.position();
-            buffer.position(messageOffset + messageSize);
         }
-        ByteBuffer messageBuffer = buffer.duplicate();
-        messageBuffer.position(messageOffset);
+        ByteBuffer messageBuffer = current.buffer.duplicate();
+        messageBuffer.position((int) (messageOffset - current.start));
         messageBuffer.put(localBuffer);
+        commit(messageOffset, messageOffset + messageSize);
+    }
+
+    private void commit(long start, long end) {
+        if (!committedPosition.compareAndSet(start, end)) {
+            completed.put(start, end);
+        }
+        // Only the writer of the record at the committed position can advance it, so it never
+        // moves between reading it and claiming the record starting there
+        while (true) {
+            long committed = committedPosition.get();
+            Long next = completed.remove(committed);
+            if (next == null) break;
+            committedPosition.set(next);
+        }
+        publish();
+    }
+
+    // Writes the committed position to the header of its segment. Whoever holds the lock publishes for
+    // everyone committing meanwhile, and looks again once done
+    private void publish() {
+        do {
+            if (!publishLock.tryLock()) return;
+            try {
+                publishCommitted();
+            } finally {
+                publishLock.unlock();
+            }
+            // A position committed before the unlock may have found the lock taken
+        } while (committedPosition.get() != publishedPosition);
+    }
+
+    // Called with publishLock held
+    private void publishCommitted() {
+        final long committed = committedPosition.get();
+        if (committed == publishedPosition) return;
+        // A committed position at the end of a segment still belongs to it
+        final long segmentStart = Segments.baseOffset(committed - 1);
+        while (headers.firstKey() < segmentStart) {
+            // Every record of a segment left behind is written
+            ByteBuffer header = headers.pollFirstEntry().getValue();
+            FileHeader.writeCommittedPosition(header, FileHeader.readEndPosition(header));
+        }
+        FileHeader.writeCommittedPosition(headers.get(segmentStart), committed - segmentStart);
+        publishedPosition = committed;
+    }
+
+    /**
+     * Forces every record completely written before the call to disk.
+     * A caller arriving while a force is running waits for it and starts the next one, which
+     * also covers everyone else who arrived meanwhile.
+     */
+    public void flush() {
+        if (flushedPosition == writePosition.get()) return; // Nothing appended since the last force
+        final long arrived = forceStarted;
+        synchronized (flushLock) {
+            if (forceCompleted > arrived) return; // Forced after we arrived
+            final long generation = forceCompleted + 1;
+            forceStarted = generation;
+            final long committed = committedPosition.get();
+            final long startTime = System.nanoTime();
+            // The keys of the records go first
+            dictionary.force();
+            // Read before the retired windows: a window is queued before it is replaced
+            Window current = window;
+            for (Window retired : unflushed) {
+                retired.buffer.force();
+                if (retired.end <= committed) unflushed.remove(retired);
+            }
+            current.buffer.force();
+            flushStats.record(committed - flushedPosition, System.nanoTime() - startTime);
+            flushedPosition = committed;
+            forceCompleted = generation;
+        }
+    }
+
+    // Bytes reserved since the last force, including those still being written
+    public long getUnflushedBytes() {
+        return writePosition.get() - flushedPosition;
+    }
+
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Publishes the committed position, flushes the bucket, records its end in the segment header and
+     * truncates the segment.
+     * No record may be appended afterwards.
+     */
+    public synchronized void close() {
+        takeNextBuffer();
+        // One failure does not keep the rest from being closed, the first one is thrown
+        RuntimeException failure = null;
+        // The final committed position goes to disk with the records
+        publishLock.lock();
+        try {
+            publishCommitted();
+        } catch (RuntimeException ex) {
+            failure = ex;
+        } finally {
+            publishLock.unlock();
+        }
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            failure = addFailure(failure, ex);
+        }
+        try {
+            dictionary.close();
+        } catch (RuntimeException ex) {
+            failure = addFailure(failure, ex);
+        }
+        try {
+            bufferService.close(name, committedPosition.get());
+        } catch (RuntimeException ex) {
+            failure = addFailure(failure, ex);
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static RuntimeException addFailure(RuntimeException first, RuntimeException next) {
+        if (first == null) return next;
+        first.addSuppressed(next);
+        return first;
+    }
+
+    // Slow path: moves on to the next window, which contains the write position
+    private synchronized void remap(Window exhausted, int messageSize) {
+        if (window != exhausted) return; // Already remapped by another producer
+        long position = writePosition.get();
+        if (position + messageSize <= exhausted.segmentEnd) {
+            MappedByteBuffer buffer = takeNextBuffer();
+            if (buffer == null) {
+                buffer = bufferService.getBuffer(name, exhausted.nextStart);
+                logger.info("Window was not prefetched in time  bucket={} offset={}", name, exhausted.nextStart);
+            }
+            install(new Window(buffer, exhausted.nextStart));
+            return;
+        }
+
+        // Roll over, the rest of the segment is left unused
+        long segmentStart = exhausted.segmentEnd;
+        if (!writePosition.compareAndSet(position, segmentStart + FileHeader.HEADER_SIZE)) {
+            return; // A smaller message was appended meanwhile, try again
+        }
+        if (position + MessageSerializer.RECORD_HEADER_SIZE <= exhausted.end) {
+            exhausted.buffer.putInt((int) (position - exhausted.start), MessageSerializer.END_OF_SEGMENT);
+        }
+        takeNextBuffer(); // Never set, windows are only prefetched within the segment
+        MappedByteBuffer buffer = bufferService.getBuffer(name, segmentStart);
+        FileHeader.write(buffer);
+        // The end is recorded once the next segment is there, so a consumer reaching it finds where to go on
+        publishLock.lock();
+        try {
+            long exhaustedStart = Segments.baseOffset(exhausted.start);
+            FileHeader.writeEndPosition(headers.get(exhaustedStart), position - exhaustedStart);
+            headers.put(segmentStart, buffer);
+        } finally {
+            publishLock.unlock();
+        }
+        install(new Window(buffer, segmentStart));
+        commit(position, segmentStart + FileHeader.HEADER_SIZE);
+    }
+
+    private void install(Window next) {
+        if (window != null) {
+            unflushed.add(window);
+            if (unflushed.size() > MAX_UNFLUSHED_WINDOWS) bufferService.execute(this::flush);
+        }
+        window = next;
+        if (next.end < next.segmentEnd) {
+            nextBuffer = bufferService.prefetchBuffer(name, next.nextStart);
+        }
+    }
+
+    // @return the prefetched window, or null if it is not ready yet
+    private MappedByteBuffer takeNextBuffer() {
+        Future<MappedByteBuffer> future = nextBuffer;
+        nextBuffer = null;
+        if (future == null) return null;
+        if (!future.isDone()) {
+            future.cancel(false);
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException | CancellationException ex) {
+            logger.warn("Prefetching window failed  bucket={}", name, ex);
+            return null;
+        }
+    }
+
+    private static final class Window {
+        final MappedByteBuffer buffer;
+        final long start; // Bucket offset of the buffer
+        final long end;
+        final long nextStart; // Where the next window starts, the overlap is mapped by both
+        final long segmentEnd;
+
+        Window(MappedByteBuffer buffer, long start) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = start + buffer.capacity();
+            this.nextStart = start + Constants.BUFFER_SIZE;
+            this.segmentEnd = Segments.baseOffset(start) + Constants.SEGMENT_SIZE;
+        }
     }
 }
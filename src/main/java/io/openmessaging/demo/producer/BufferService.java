@@ -1,6 +1,8 @@
 package io.openmessaging.demo.producer;
 
 import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.Segments;
+import io.openmessaging.demo.serializer.FileHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,73 +10,177 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Pool of memory-mapped buffer
  * <p>
+ * Every segment is mapped in fixed windows, {@link Constants#BUFFER_SIZE} apart. A window extends
+ * {@link Constants#MAX_BATCH_SIZE} into the next one, so a record or a batch starting in a window always fits in it.
+ * The next window of a bucket can be mapped and loaded ahead of time by a background allocator.
+ * <p>
  * Created by yfu on 5/27/17.
  */
 public class BufferService {
     private static Logger logger = LoggerFactory.getLogger(BufferService.class);
 
     private final String storePath;
-    private final HashMap<String, MappedFile> fileChannels = new HashMap<>(100);
+    private final ConcurrentHashMap<String, MappedFile> fileChannels = new ConcurrentHashMap<>(100);
+
+    private final ExecutorService allocator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "buffer-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // Must call this before starting to put data
     public BufferService(String storePath) {
         this.storePath = storePath;
     }
 
-    public ByteBuffer getBuffer(String bucket, int position) {
+    /**
+     * Maps the window of a bucket containing {@code position}.
+     * A position in a new segment creates the segment file.
+     *
+     * @param position bucket offset the returned buffer is positioned at
+     */
+    public MappedByteBuffer getBuffer(String bucket, long position) {
+        return map(bucket, getMappedFile(bucket, position), position);
+    }
+
+    /**
+     * Maps the window of a bucket starting at {@code position} in the background, and loads it
+     * so that appending to it does not fault on every page.
+     * The window must belong to a segment already created by {@link #getBuffer(String, long)}.
+     *
+     * @param position bucket offset where a window starts, the returned buffer is positioned at 0
+     */
+    public Future<MappedByteBuffer> prefetchBuffer(String bucket, long position) {
+        final MappedFile mappedFile = getMappedFile(bucket, position);
+        return allocator.submit(() -> {
+            MappedByteBuffer buffer = map(bucket, mappedFile, position);
+            buffer.load();
+            return buffer;
+        });
+    }
+
+    /**
+     * @return the key dictionary file of a bucket, its directory exists once the first segment is created
+     */
+    public Path getDictionaryPath(String bucket) {
+        return Paths.get(storePath, bucket, Segments.DICTIONARY_FILE_NAME);
+    }
+
+    /**
+     * Runs a task on the background allocator, after the prefetches already queued
+     */
+    public void execute(Runnable task) {
+        allocator.execute(task);
+    }
 
+    /**
+     * Stops the background allocator once the tasks already queued are done. They are not
+     * interrupted: an interrupt during a map would close the channel of the segment.
+     */
+    public void shutdown() {
+        allocator.shutdown();
+        try {
+            allocator.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the end of data in the header of the active segment of a bucket, truncates the
+     * segment to it and forces it to disk. The windows of the segment must not be used afterwards.
+     *
+     * @param endOffset bucket offset after the last record
+     */
+    public void close(String bucket, long endOffset) {
+        MappedFile mappedFile = fileChannels.remove(bucket);
+        if (mappedFile == null) return;
+        final long endPosition = endOffset - mappedFile.baseOffset;
+        ByteBuffer field = ByteBuffer.allocate(8);
+        field.putLong(0, endPosition);
+        try {
+            mappedFile.channel.write(field, FileHeader.END_POSITION_OFFSET);
+            mappedFile.channel.truncate(endPosition);
+            mappedFile.channel.force(true);
+        } catch (IOException ex) {
+            throw new RuntimeException("Closing segment failed", ex);
+        } finally {
+            mappedFile.close();
+        }
+        logger.info("Closed segment  bucket={} base_offset={} end_position={}", bucket, mappedFile.baseOffset, endPosition);
+    }
+
+    private MappedFile getMappedFile(String bucket, long position) {
         MappedFile mappedFile = fileChannels.get(bucket);
-        if (mappedFile == null) {
+        final long baseOffset = Segments.baseOffset(position);
+        if (mappedFile == null || mappedFile.baseOffset != baseOffset) {
             synchronized (fileChannels) {
-                if ((mappedFile = fileChannels.get(bucket)) == null) {
-                    Path path = Paths.get(storePath, bucket);
+                if ((mappedFile = fileChannels.get(bucket)) == null || mappedFile.baseOffset != baseOffset) {
+                    if (mappedFile != null) mappedFile.close();
+                    Path directory = Paths.get(storePath, bucket);
+                    Path path = directory.resolve(Segments.fileName(baseOffset));
                     try {
+                        Files.createDirectories(directory);
                         FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
-                        mappedFile = new MappedFile(channel);
+                        mappedFile = new MappedFile(channel, baseOffset);
                     } catch (IOException ex) {
                         throw new RuntimeException("File channel open file failed", ex);
                     }
                     fileChannels.put(bucket, mappedFile);
+                    logger.info("Created segment  bucket={} base_offset={}", bucket, baseOffset);
                 }
             }
         }
+        return mappedFile;
+    }
 
-        // Allocating next buffer (size == BUFFER_SIZE)
-        final int droppedPages = position >> 12;
-        final int newPosition = position & 0xfff;
-        mappedFile.currentMapStart += droppedPages << 12;
-        mappedFile.currentMapEnd += Constants.BUFFER_SIZE;
+    private MappedByteBuffer map(String bucket, MappedFile mappedFile, long position) {
+        final long segmentPosition = position - mappedFile.baseOffset;
+        final long mapStart = segmentPosition - segmentPosition % Constants.BUFFER_SIZE;
+        final long mapEnd = Math.min(mapStart + Constants.BUFFER_SIZE + Constants.MAX_BATCH_SIZE, Constants.SEGMENT_SIZE);
 
         MappedByteBuffer byteBuffer;
         try {
-            byteBuffer = mappedFile.channel.map(FileChannel.MapMode.READ_WRITE,
-                    mappedFile.currentMapStart, mappedFile.currentMapEnd - mappedFile.currentMapStart);
-            byteBuffer.position(newPosition);
+            byteBuffer = mappedFile.channel.map(FileChannel.MapMode.READ_WRITE, mapStart, mapEnd - mapStart);
+            byteBuffer.position((int) (segmentPosition - mapStart));
         } catch (IOException ex) {
             throw new RuntimeException("File channel open file failed", ex);
         }
 
-        logger.info("Allocated MappedByteBuffer (write)  bucket={} file_offset={} map_start={} map_end={}",
-                bucket, position, mappedFile.currentMapStart, mappedFile.currentMapEnd);
+        logger.info("Allocated MappedByteBuffer (write)  bucket={} offset={} segment={} map_start={} map_end={}",
+                bucket, position, mappedFile.baseOffset, mapStart, mapEnd);
         return byteBuffer;
     }
 
     private static class MappedFile {
         final FileChannel channel;
+        final long baseOffset;
 
-        int currentMapStart = 0;
-        int currentMapEnd = 0;
-
-        MappedFile(FileChannel channel) {
+        MappedFile(FileChannel channel, long baseOffset) {
             this.channel = channel;
+            this.baseOffset = baseOffset;
+        }
+
+        // Mapped buffers stay valid after the channel is closed
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close segment  base_offset={}", baseOffset, ex);
+            }
         }
     }
 }
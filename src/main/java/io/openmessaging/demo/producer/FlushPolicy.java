@@ -0,0 +1,27 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.demo.ClientOMSException;
+
+import java.util.Locale;
+
+/**
+ * When the records appended to the mapped buckets are forced to disk, besides explicit flushes
+ */
+public enum FlushPolicy {
+    // Left to the page cache
+    NONE,
+    // Every bucket with unflushed records, at a fixed interval
+    PERIODIC,
+    // A bucket, once it has accumulated enough unflushed bytes
+    BYTES,
+    // Before every send returns, concurrent senders share forces
+    SYNC;
+
+    public static FlushPolicy parse(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new ClientOMSException("Unknown flush policy: " + name);
+        }
+    }
+}
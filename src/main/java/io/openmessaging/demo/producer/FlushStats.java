@@ -0,0 +1,58 @@
+package io.openmessaging.demo.producer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the forces of mapped buckets
+ */
+public class FlushStats {
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder forcedBytes = new LongAdder();
+    private final LongAdder forceNanos = new LongAdder();
+    private final AtomicLong maxForceNanos = new AtomicLong();
+
+    /**
+     * @param bytes bytes committed since the previous force
+     * @param nanos duration of the force
+     */
+    public void record(long bytes, long nanos) {
+        forces.increment();
+        forcedBytes.add(bytes);
+        forceNanos.add(nanos);
+        maxForceNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public void add(FlushStats other) {
+        forces.add(other.getForces());
+        forcedBytes.add(other.getForcedBytes());
+        forceNanos.add(other.getForceNanos());
+        maxForceNanos.accumulateAndGet(other.getMaxForceNanos(), Math::max);
+    }
+
+    public long getForces() {
+        return forces.sum();
+    }
+
+    public long getForcedBytes() {
+        return forcedBytes.sum();
+    }
+
+    public long getForceNanos() {
+        return forceNanos.sum();
+    }
+
+    public long getMaxForceNanos() {
+        return maxForceNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long count = getForces();
+        return String.format("forces=%d bytes_per_force=%d avg_force_us=%d max_force_us=%d",
+                count,
+                count == 0 ? 0 : getForcedBytes() / count,
+                count == 0 ? 0 : getForceNanos() / count / 1000,
+                getMaxForceNanos() / 1000);
+    }
+}
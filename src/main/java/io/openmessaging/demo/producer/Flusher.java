@@ -0,0 +1,110 @@
+package io.openmessaging.demo.producer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies the {@link FlushPolicy} of a store.
+ * <p>
+ * The periodic and byte-count policies force buckets on a background thread, so producers never
+ * wait for the disk; the synchronous policy forces in the sending thread. The thread is parked
+ * between flushes and never interrupted: an interrupt during a force would close the file channel.
+ */
+public class Flusher {
+    private static Logger logger = LoggerFactory.getLogger(Flusher.class);
+
+    private final FlushPolicy policy;
+    private final long intervalMillis;
+    private final long flushBytes;
+    private final Collection<BucketWriter> writers;
+
+    // Buckets over the byte threshold, queued once until they are flushed
+    private final LinkedBlockingQueue<BucketWriter> requests = new LinkedBlockingQueue<>();
+    private final Set<BucketWriter> requested = ConcurrentHashMap.newKeySet();
+
+    private Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param writers live view of the buckets of the store
+     */
+    public Flusher(FlushPolicy policy, long intervalMillis, long flushBytes, Collection<BucketWriter> writers) {
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.flushBytes = flushBytes;
+        this.writers = writers;
+        if (policy == FlushPolicy.PERIODIC || policy == FlushPolicy.BYTES) {
+            thread = new Thread(this::run, "bucket-flusher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        logger.info("Flush policy  policy={} interval_ms={} bytes={}", policy, intervalMillis, flushBytes);
+    }
+
+    // Called after every append to a bucket
+    public void onAppend(BucketWriter writer) {
+        switch (policy) {
+            case SYNC:
+                writer.flush();
+                break;
+            case BYTES:
+                if (writer.getUnflushedBytes() >= flushBytes && requested.add(writer)) {
+                    requests.offer(writer);
+                    LockSupport.unpark(thread);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void run() {
+        long nextFlush = System.currentTimeMillis() + intervalMillis;
+        try {
+            while (running) {
+                if (policy == FlushPolicy.BYTES) {
+                    BucketWriter writer = requests.poll();
+                    if (writer == null) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    requested.remove(writer);
+                    writer.flush();
+                } else {
+                    long delay = nextFlush - System.currentTimeMillis();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+                        continue;
+                    }
+                    nextFlush = Math.max(nextFlush + intervalMillis, System.currentTimeMillis());
+                    for (BucketWriter writer : writers) {
+                        writer.flush();
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.error("Flusher failed, records are no longer forced by the {} policy", policy, ex);
+        }
+    }
+
+    /**
+     * Stops the background thread, buckets are flushed by the caller when closing them
+     */
+    public void shutdown() {
+        if (thread == null) return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.Message;
+import io.openmessaging.demo.ClientOMSException;
+import io.openmessaging.demo.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends messages sent one-way, delivery is best effort.
+ * <p>
+ * Senders only claim a slot in the {@link OnewayRing} of the bucket. A single drainer thread
+ * moves the messages of every ring to its {@link BucketWriter}, serializing them in batches
+ * appended with one reservation each. Once every ring stays empty for a while, the drainer parks until
+ * the next send wakes it up.
+ */
+public class OnewayAppender {
+    private static Logger logger = LoggerFactory.getLogger(OnewayAppender.class);
+
+    // What a sender does when the ring of the bucket is full
+    public enum Backpressure {
+        BLOCK, DROP_NEWEST, DROP_OLDEST;
+
+        public static Backpressure parse(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException ex) {
+                throw new ClientOMSException("Unknown backpressure: " + name);
+            }
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    // Passes over empty rings the drainer yields for before it parks
+    private static final int YIELDS = 100;
+
+    private final BucketManager bucketManager;
+    private final int ringCapacity;
+    private final Backpressure backpressure;
+
+    private final ConcurrentHashMap<String, OnewayRing> rings = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile Thread drainer; // Started under this
+    // Set by the drainer before it parks, senders then unpark it
+    private volatile boolean sleeping = false;
+    private volatile boolean running = true;
+    // Senders past the running check, shutdown waits for them before the last drain
+    private final AtomicInteger senders = new AtomicInteger();
+    // Set once no sender can add to the rings, the drainer then stops when they are empty
+    private volatile boolean stopping = false;
+    // Passes of the drainer over all rings completed so far, written by the drainer only
+    private volatile long passes = 0;
+
+    public OnewayAppender(BucketManager bucketManager, int ringCapacity, Backpressure backpressure) {
+        this.bucketManager = bucketManager;
+        this.ringCapacity = ringCapacity;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * The message must not be modified afterwards
+     */
+    public void send(String bucket, Message message) {
+        senders.incrementAndGet();
+        try {
+            offer(bucket, message);
+        } finally {
+            senders.decrementAndGet();
+        }
+    }
+
+    private void offer(String bucket, Message message) {
+        if (!running) throw new ClientOMSException("Store is closed");
+        OnewayRing ring = rings.get(bucket);
+        if (ring == null) ring = createRing(bucket);
+        switch (backpressure) {
+            case BLOCK:
+                while (!ring.offer(message)) {
+                    if (!running) throw new ClientOMSException("Store is closed");
+                    LockSupport.parkNanos(10_000);
+                }
+                break;
+            case DROP_NEWEST:
+                if (!ring.offer(message)) {
+                    dropped.increment();
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!ring.offer(message)) {
+                    if (ring.poll() != null) dropped.increment();
+                }
+                break;
+        }
+        // A parking drainer checks the rings once announced: it sees the offer, or the offer sees it sleeping
+        if (sleeping) LockSupport.unpark(drainer);
+    }
+
+    private synchronized OnewayRing createRing(String bucket) {
+        OnewayRing ring = rings.computeIfAbsent(bucket, key -> new OnewayRing(ringCapacity));
+        if (drainer == null) {
+            drainer = new Thread(this::drain, "oneway-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+            logger.info("Started oneway drainer  ring_capacity={} backpressure={}", ringCapacity, backpressure);
+        }
+        return ring;
+    }
+
+    // Messages dropped by backpressure or because they could not be appended
+    public long getDroppedMessages() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        Message[] batch = new Message[MAX_BATCH];
+        ByteBuffer localBuffer = ByteBuffer.allocate(Constants.MAX_RECORD_SIZE);
+        int idle = 0;
+        while (true) {
+            boolean stopping = this.stopping;
+            boolean drained = false;
+            for (Map.Entry<String, OnewayRing> entry : rings.entrySet()) {
+                int count = entry.getValue().drainTo(batch);
+                if (count == 0) continue;
+                drained = true;
+                int appended = 0;
+                try {
+                    appended = bucketManager.putMessages(entry.getKey(), batch, count, localBuffer);
+                } catch (RuntimeException ex) {
+                    logger.warn("Appending oneway messages failed  bucket={}", entry.getKey(), ex);
+                }
+                if (appended < count) {
+                    dropped.add(count - appended);
+                    logger.warn("Dropped oneway messages  bucket={} count={}", entry.getKey(), count - appended);
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+            passes++;
+            if (drained) {
+                idle = 0;
+            } else if (stopping && allEmpty()) {
+                return;
+            } else if (++idle < YIELDS) {
+                Thread.yield();
+            } else {
+                // Checked again once announced, so that no send is missed
+                sleeping = true;
+                if (allEmpty() && !this.stopping) LockSupport.park(this);
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Returns once every message sent before the call is appended, or dropped
+     */
+    public void awaitAppended() {
+        Map<OnewayRing, Long> sent = new HashMap<>();
+        for (OnewayRing ring : rings.values()) {
+            sent.put(ring, ring.sent());
+        }
+        for (Map.Entry<OnewayRing, Long> entry : sent.entrySet()) {
+            while (entry.getKey().taken() < entry.getValue()) {
+                if (!isDraining()) return;
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        // The pass that took the last of them may still be appending, a parked drainer makes one more
+        long pass = passes;
+        while (passes <= pass && isDraining()) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    private boolean isDraining() {
+        Thread thread = drainer;
+        return thread != null && thread.isAlive();
+    }
+
+    private boolean allEmpty() {
+        for (OnewayRing ring : rings.values()) {
+            if (!ring.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends everything sent so far and stops the drainer
+     */
+    public void shutdown() {
+        running = false;
+        // A sender that passed the check before may still be adding to a ring
+        while (senders.get() > 0) {
+            LockSupport.parkNanos(10_000);
+        }
+        stopping = true;
+        Thread thread = drainer;
+        if (thread == null) return;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
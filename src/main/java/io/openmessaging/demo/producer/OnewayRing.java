@@ -0,0 +1,111 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Preallocated ring of the messages sent one-way to a bucket.
+ * <p>
+ * Every slot carries a sequence number telling whose turn it is: a sender claims the slot of
+ * the tail by a CAS once the slot has been drained, the drainer claims the slot of the head once
+ * it has been published. Dropping the oldest message takes it like the drainer does, which is
+ * why the head is claimed by a CAS as well.
+ */
+public class OnewayRing {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<Message> messages;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity a power of two
+     */
+    public OnewayRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        messages = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    public boolean offer(Message message) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long turn = sequences.get(index) - position;
+            if (turn == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (turn < 0) {
+                return false; // The slot of the previous lap is not drained yet
+            } else {
+                position = tail.get(); // Claimed by another sender meanwhile
+            }
+        }
+        int index = (int) position & mask;
+        messages.lazySet(index, message);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest message, or null if the ring is empty
+     */
+    public Message poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long turn = sequences.get(index) - (position + 1);
+            if (turn == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+                position = head.get();
+            } else if (turn < 0) {
+                return null; // Not published yet
+            } else {
+                position = head.get();
+            }
+        }
+        int index = (int) position & mask;
+        Message message = messages.get(index);
+        messages.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        return message;
+    }
+
+    /**
+     * @return number of messages moved into {@code drained}, at most its length
+     */
+    public int drainTo(Message[] drained) {
+        int count = 0;
+        Message message;
+        while (count < drained.length && (message = poll()) != null) {
+            drained[count++] = message;
+        }
+        return count;
+    }
+
+    // Number of messages offered so far
+    public long sent() {
+        return tail.get();
+    }
+
+    // Number of messages taken so far, by the drainer or dropped
+    public long taken() {
+        return head.get();
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+}
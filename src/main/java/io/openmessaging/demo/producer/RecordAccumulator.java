@@ -0,0 +1,138 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.Message;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.serializer.MessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Records sent by one producer, accumulated per bucket and appended with one reservation once
+ * the batch size is reached or the oldest record has lingered long enough. When the store
+ * compresses, they are appended as a batch record so that they can be compressed together.
+ * <p>
+ * Sends of the producer and the linger timer of the store both append, so every operation
+ * holds the monitor; it is uncontended except when the timer fires.
+ */
+public class RecordAccumulator {
+    private static Logger logger = LoggerFactory.getLogger(RecordAccumulator.class);
+
+    // Leaves room for a last record and the header of a batch
+    public static final int MAX_BATCH_SIZE = Constants.MAX_BATCH_SIZE - Constants.MAX_RECORD_SIZE
+            - MessageSerializer.MAX_BATCH_HEADER_SIZE;
+
+    private final BucketManager bucketManager;
+    private final int batchSize;
+    // Accumulated as the records of a batch, to be compressed
+    private final boolean batched;
+    private final int recordsStart;
+    private final long lingerNanos;
+
+    private final HashMap<String, Batch> batches = new HashMap<>(); // guarded by this
+    private final ScheduledFuture<?> timer;
+
+    /**
+     * @param batchSize   bytes of records that trigger an append, at most {@link #MAX_BATCH_SIZE}
+     * @param lingerMillis longest time a record waits for the batch to fill up
+     */
+    public RecordAccumulator(BucketManager bucketManager, int batchSize, long lingerMillis) {
+        if (batchSize <= 0 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        this.bucketManager = bucketManager;
+        this.batchSize = batchSize;
+        this.batched = bucketManager.isCompressed();
+        this.recordsStart = batched ? MessageSerializer.MAX_BATCH_HEADER_SIZE : 0;
+        this.lingerNanos = lingerMillis * 1000_000L;
+        this.timer = bucketManager.scheduleLinger(this::appendExpired, Math.max(1, lingerMillis / 2));
+    }
+
+    public synchronized void send(String bucket, Message message) {
+        Batch batch = batches.get(bucket);
+        if (batch == null) {
+            // Room for one more record when the batch is just short of its size
+            batch = new Batch(ByteBuffer.allocate(recordsStart + batchSize + Constants.MAX_RECORD_SIZE),
+                    bucketManager.getSerializer(bucket));
+            batch.records.position(recordsStart);
+            batches.put(bucket, batch);
+        }
+        ByteBuffer records = batch.records;
+        if (batch.count == 0) batch.firstSend = System.nanoTime();
+        final int start = records.position();
+        try {
+            if (batched) {
+                batch.serializer.writeBatched(records, message);
+            } else {
+                batch.serializer.write(records, message);
+            }
+        } catch (RuntimeException ex) {
+            // The records accumulated so far stay as they are
+            records.position(start);
+            throw ex;
+        }
+        batch.count++;
+        if (records.position() - recordsStart >= batchSize) append(bucket, batch);
+    }
+
+    // Appends the batches whose oldest record has waited for the linger time
+    private synchronized void appendExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            Batch batch = entry.getValue();
+            if (batch.count > 0 && now - batch.firstSend >= lingerNanos) {
+                try {
+                    append(entry.getKey(), batch);
+                } catch (RuntimeException ex) {
+                    // Thrown to the timer it would cancel it
+                    logger.error("Dropped lingering records  bucket={}", entry.getKey(), ex);
+                }
+            }
+        }
+    }
+
+    // Appends every record sent so far
+    public synchronized void appendAll() {
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            if (entry.getValue().count > 0) append(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void append(String bucket, Batch batch) {
+        batch.records.flip();
+        try {
+            if (batched) {
+                bucketManager.putBatch(bucket, batch.records, batch.count);
+            } else {
+                bucketManager.putRecords(bucket, batch.records);
+            }
+        } finally {
+            batch.records.clear().position(recordsStart);
+            batch.count = 0;
+        }
+    }
+
+    /**
+     * Appends every record sent so far and stops the linger timer
+     */
+    public void close() {
+        timer.cancel(false);
+        appendAll();
+    }
+
+    private static final class Batch {
+        final ByteBuffer records;
+        final MessageSerializer serializer; // Numbers keys by the dictionary of the bucket
+        int count;
+        long firstSend;
+
+        Batch(ByteBuffer records, MessageSerializer serializer) {
+            this.records = records;
+            this.serializer = serializer;
+        }
+    }
+}
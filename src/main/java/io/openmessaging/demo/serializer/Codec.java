@@ -0,0 +1,27 @@
+package io.openmessaging.demo.serializer;
+
+/**
+ * Block compression of the records of a batch. Implementations are stateless and thread-safe.
+ */
+public interface Codec {
+
+    // Stored with every compressed batch, must never change
+    byte id();
+
+    String name();
+
+    // Upper bound of the compressed size of {@code length} bytes
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the compressed length
+     */
+    int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * Decompresses exactly {@code dstLength} bytes
+     *
+     * @throws IllegalArgumentException if the block is malformed
+     */
+    void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int dstLength);
+}
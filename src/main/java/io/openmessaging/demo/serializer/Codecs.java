@@ -0,0 +1,28 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.demo.ClientOMSException;
+
+/**
+ * Registry of the codecs that may appear in bucket files
+ */
+public final class Codecs {
+
+    public static final Codec LZ4 = new Lz4Codec();
+
+    private Codecs() {
+    }
+
+    /**
+     * @return the codec configured by name, or null for "none"
+     */
+    public static Codec forName(String name) {
+        if ("none".equalsIgnoreCase(name)) return null;
+        if (LZ4.name().equalsIgnoreCase(name)) return LZ4;
+        throw new ClientOMSException("Unknown compression codec: " + name);
+    }
+
+    static Codec forId(byte id) {
+        if (id == LZ4.id()) return LZ4;
+        throw new IllegalArgumentException("Unknown compression codec id " + id);
+    }
+}
@@ -0,0 +1,29 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.demo.ClientOMSException;
+
+/**
+ * Thrown when a record cannot be decoded. The buffer has already been advanced past the record,
+ * so reading can go on with the next one.
+ */
+public class CorruptRecordException extends ClientOMSException {
+
+    private final boolean checksumMismatch;
+
+    public CorruptRecordException(String message, boolean checksumMismatch) {
+        super(message);
+        this.checksumMismatch = checksumMismatch;
+    }
+
+    public CorruptRecordException(String message, Throwable throwable) {
+        super(message, throwable);
+        this.checksumMismatch = false;
+    }
+
+    /**
+     * @return true if the record was rejected by its checksum, false if its content could not be decoded
+     */
+    public boolean isChecksumMismatch() {
+        return checksumMismatch;
+    }
+}
@@ -0,0 +1,96 @@
+package io.openmessaging.demo.serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header at the beginning of every bucket file
+ * <pre>
+ * 0  int   magic "OMSB"
+ * 4  byte  format version
+ * 5  ...   reserved, zero
+ * 8  long  end position, the file position after the last record; set when the writer rolls
+ *          over to the next segment or is closed cleanly, zero while it is open or after a crash
+ * 16 long  committed position, the file position up to which all records are completely written;
+ *          published by the writer while it appends, zero in files written before it was
+ * 24 ...   reserved, zero
+ * </pre>
+ * Files written before the header existed start with the first message body, they are
+ * reported as {@link #LEGACY_VERSION}.
+ */
+public final class FileHeader {
+
+    public static final int MAGIC = 0x4f4d5342; // "OMSB"
+
+    public static final byte LEGACY_VERSION = 0;
+    public static final byte CURRENT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    public static final int END_POSITION_OFFSET = 8;
+
+    public static final int COMMITTED_POSITION_OFFSET = 16;
+
+    private static final int VERSION_OFFSET = 4;
+
+    private FileHeader() {
+    }
+
+    /**
+     * Writes the header at the position of the buffer, which must be the start of the file
+     */
+    public static void write(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(start, MAGIC);
+        buffer.put(start + VERSION_OFFSET, CURRENT_VERSION);
+        buffer.position(start + HEADER_SIZE);
+    }
+
+    /**
+     * Reads the header at the position of the buffer, which must be the start of the file, and
+     * skips it. The position is left untouched for legacy files.
+     *
+     * @return the format version of the file
+     */
+    public static byte read(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(start) != MAGIC) {
+            return LEGACY_VERSION;
+        }
+        byte version = buffer.get(start + VERSION_OFFSET);
+        if (version != CURRENT_VERSION) {
+            throw new IllegalStateException("Unsupported bucket file version " + version);
+        }
+        buffer.position(start + HEADER_SIZE);
+        return version;
+    }
+
+    /**
+     * @param buffer buffer starting with a header read by {@link #read(ByteBuffer)}
+     * @return the end position recorded by a clean shutdown, or 0 if unknown
+     */
+    public static long readEndPosition(ByteBuffer buffer) {
+        return buffer.getLong(END_POSITION_OFFSET);
+    }
+
+    /**
+     * Records the end of data, once no record can be appended after it
+     */
+    public static void writeEndPosition(ByteBuffer buffer, long endPosition) {
+        buffer.putLong(END_POSITION_OFFSET, endPosition);
+    }
+
+    /**
+     * @param buffer buffer starting with a header
+     * @return the committed position last published, or 0 if none was
+     */
+    public static long readCommittedPosition(ByteBuffer buffer) {
+        return buffer.getLong(COMMITTED_POSITION_OFFSET);
+    }
+
+    /**
+     * Publishes the committed position, once the records before it are written
+     */
+    public static void writeCommittedPosition(ByteBuffer buffer, long committedPosition) {
+        buffer.putLong(COMMITTED_POSITION_OFFSET, committedPosition);
+    }
+}
@@ -0,0 +1,172 @@
+package io.openmessaging.demo.serializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keys of the headers and properties of one bucket, numbered in the order they first appear.
+ * <p>
+ * The keys are appended to a file next to the segments, the id of a key is its index:
+ * <pre>
+ * entry := varint length, bytes of key
+ * </pre>
+ * A key is written to the file before any record can refer to it, so a reader meeting an id it
+ * does not know yet only has to read the file again. Keys beyond {@link #MAX_KEYS}, or longer
+ * than {@link #MAX_KEY_LENGTH}, are not numbered and stay literal in the records.
+ */
+public final class KeyDictionary {
+    private static Logger logger = LoggerFactory.getLogger(KeyDictionary.class);
+
+    public static final int MAX_KEYS = 4096;
+    public static final int MAX_KEY_LENGTH = 256;
+
+    private final Path path;
+
+    // Writer side
+    private final FileChannel channel;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile boolean full = false;
+    private long fileSize = 0; // guarded by this
+    private boolean dirty = false; // guarded by this, keys added since the last force
+
+    // Reader side, lazy messages may resolve keys on other threads than their reader
+    private volatile String[] keys = new String[0];
+
+    private KeyDictionary(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates the dictionary of a new bucket
+     */
+    public static KeyDictionary create(Path path) {
+        try {
+            return new KeyDictionary(path, FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW));
+        } catch (IOException ex) {
+            throw new RuntimeException("Creating key dictionary failed", ex);
+        }
+    }
+
+    /**
+     * Opens the dictionary of a bucket for reading, the file is read on demand
+     */
+    public static KeyDictionary open(Path path) {
+        return new KeyDictionary(path, null);
+    }
+
+    /**
+     * Numbers a key, writing it to the file the first time
+     *
+     * @return the id of the key, or -1 if it stays literal
+     */
+    public int idOf(String key) {
+        Integer id = ids.get(key);
+        if (id != null) return id;
+        if (full || key.length() > MAX_KEY_LENGTH) return -1;
+        return add(key);
+    }
+
+    private synchronized int add(String key) {
+        Integer id = ids.get(key);
+        if (id != null) return id;
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_LENGTH) return -1;
+        if (ids.size() == MAX_KEYS) {
+            full = true;
+            logger.info("Key dictionary is full  path={}", path);
+            return -1;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(Varints.size(bytes.length) + bytes.length);
+        Varints.put(entry, bytes.length);
+        entry.put(bytes);
+        entry.flip();
+        try {
+            while (entry.hasRemaining()) {
+                fileSize += channel.write(entry, fileSize);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Writing key dictionary failed", ex);
+        }
+        dirty = true;
+        int next = ids.size();
+        ids.put(key, next);
+        return next;
+    }
+
+    /**
+     * Forces the keys numbered so far to disk
+     */
+    public synchronized void force() {
+        if (!dirty) return;
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            throw new RuntimeException("Forcing key dictionary failed", ex);
+        }
+        dirty = false;
+    }
+
+    public synchronized void close() {
+        force();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Closing key dictionary failed", ex);
+        }
+    }
+
+    /**
+     * Resolves an id read from a record
+     *
+     * @return the interned key
+     * @throws IllegalStateException if the id is not in the file
+     */
+    public String key(int id) {
+        String[] loaded = keys;
+        if (id >= loaded.length) {
+            loaded = load();
+            if (id >= loaded.length) throw new IllegalStateException("Unknown key id " + id);
+        }
+        return loaded[id];
+    }
+
+    private synchronized String[] load() {
+        ByteBuffer file;
+        try {
+            file = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException ex) {
+            return keys;
+        } catch (IOException ex) {
+            throw new RuntimeException("Reading key dictionary failed", ex);
+        }
+        List<String> loaded = new ArrayList<>(keys.length + 16);
+        while (file.hasRemaining()) {
+            int length;
+            try {
+                length = Varints.get(file);
+            } catch (RuntimeException ex) {
+                break; // An entry being written
+            }
+            if (length > file.remaining()) break;
+            String key = loaded.size() < keys.length ? keys[loaded.size()]
+                    : new String(file.array(), file.position(), length, StandardCharsets.UTF_8).intern();
+            file.position(file.position() + length);
+            loaded.add(key);
+        }
+        keys = loaded.toArray(new String[0]);
+        return keys;
+    }
+}
@@ -0,0 +1,140 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.KeyValue;
+import io.openmessaging.Message;
+import io.openmessaging.demo.DefaultKeyValue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Message read as a view over the buffer of its record.
+ * <p>
+ * The body is copied, and the headers and properties decoded, only once they are accessed.
+ * Values put before the headers or properties are decoded are kept over those of the record.
+ * The view keeps the mapping of the record alive, so retaining many messages retains their windows.
+ */
+public final class LazyBytesMessage implements BytesMessage {
+
+    private final ByteBuffer buffer; // Owned, positioned anywhere
+    private final int bodyStart;
+    private final int bodyLength;
+    private final KeyDictionary dictionary;
+
+    private byte[] body;
+    private KeyValue headers;
+    private KeyValue properties;
+    private boolean headersDecoded = false;
+    private boolean propertiesDecoded = false;
+
+    LazyBytesMessage(ByteBuffer buffer, int bodyStart, int bodyLength, KeyDictionary dictionary) {
+        this.buffer = buffer;
+        this.bodyStart = bodyStart;
+        this.bodyLength = bodyLength;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return read-only view of the body, without copying it
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (body != null) return ByteBuffer.wrap(body).asReadOnlyBuffer();
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(bodyStart + bodyLength).position(bodyStart);
+        return view.slice();
+    }
+
+    @Override public byte[] getBody() {
+        if (body == null) {
+            body = new byte[bodyLength];
+            buffer.position(bodyStart);
+            buffer.get(body);
+        }
+        return body;
+    }
+
+    @Override public BytesMessage setBody(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    @Override public KeyValue headers() {
+        if (!headersDecoded) {
+            if (headers == null) headers = new DefaultKeyValue();
+            buffer.position(bodyStart + bodyLength);
+            MessageSerializer.readKeyValues(buffer, Varints.get(buffer), headers, false, dictionary);
+            headersDecoded = true;
+        }
+        return headers;
+    }
+
+    // Null if the message has no properties, like other messages
+    @Override public KeyValue properties() {
+        if (!propertiesDecoded) {
+            buffer.position(bodyStart + bodyLength);
+            MessageSerializer.skipKeyValues(buffer);
+            int count = Varints.get(buffer);
+            if (count > 0) {
+                if (properties == null) properties = new DefaultKeyValue();
+                MessageSerializer.readKeyValues(buffer, count, properties, false, dictionary);
+            }
+            propertiesDecoded = true;
+        }
+        return properties;
+    }
+
+    private KeyValue pendingHeaders() {
+        if (headers == null) headers = new DefaultKeyValue();
+        return headers;
+    }
+
+    private KeyValue pendingProperties() {
+        if (properties == null) properties = new DefaultKeyValue();
+        return properties;
+    }
+
+    @Override public Message putHeaders(String key, int value) {
+        pendingHeaders().put(key, value);
+        return this;
+    }
+
+    @Override public Message putHeaders(String key, long value) {
+        pendingHeaders().put(key, value);
+        return this;
+    }
+
+    @Override public Message putHeaders(String key, double value) {
+        pendingHeaders().put(key, value);
+        return this;
+    }
+
+    @Override public Message putHeaders(String key, String value) {
+        pendingHeaders().put(key, value);
+        return this;
+    }
+
+    @Override public Message putProperties(String key, int value) {
+        pendingProperties().put(key, value);
+        return this;
+    }
+
+    @Override public Message putProperties(String key, long value) {
+        pendingProperties().put(key, value);
+        return this;
+    }
+
+    @Override public Message putProperties(String key, double value) {
+        pendingProperties().put(key, value);
+        return this;
+    }
+
+    @Override public Message putProperties(String key, String value) {
+        pendingProperties().put(key, value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "headers=" + headers() + ", properties=" + properties() + ", body=" + new String(getBody());
+    }
+}
@@ -0,0 +1,109 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.Message;
+import io.openmessaging.demo.DefaultBytesMessage;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the original bucket files, which have no file header and store the body and
+ * values C-style (NUL-terminated). Only kept to consume stores written before {@link FileHeader}.
+ *
+ * Created by yfu on 5/21/17.
+ */
+public final class LegacyMessageSerializer implements MessageDeserializer {
+
+    private final static byte NUL = (byte)0;
+
+    private final static byte KEY_HEADER_KEY = (byte)0xff;
+    private final static byte KEY_PRO_OFFSET = (byte)0xfe;
+    private final static String HEADER_KEY = "MessageId";
+    private final static String PRO_OFFSET = "PRO_OFFSET";
+    private final static String PRODUCER = "PRODUCER";
+    
+    // Strings are copied here first, so that readers share no state
+    private final static int SCRATCH_SIZE = 32 * 1024;
+    private final static ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    @Override
+    public Message read(ByteBuffer buffer) throws BufferUnderflowException {
+        if (!buffer.hasRemaining()) return null;
+        
+        byte[] body = readBody(buffer);
+        if (body == null) return null;
+        BytesMessage message = new DefaultBytesMessage(body);
+
+        int numHeaders = buffer.get(); // one byte
+        for (int i = 0; i < numHeaders; i++) {
+            String key = readKey(buffer);
+            String value = readValue(buffer);
+            message.putHeaders(key, value);
+        }
+
+        int numProperties = buffer.get(); // one byte
+        for (int i = 0; i < numProperties; i++) {
+            byte length = buffer.get(); // one byte
+            String key;
+            if (length == KEY_HEADER_KEY) {
+                key = HEADER_KEY;
+            } else if (length == KEY_PRO_OFFSET) {
+                key = PRO_OFFSET;
+            } else {
+                key = readString(buffer, length);
+            }
+            
+            String value = readValue(buffer);
+            if (length == KEY_PRO_OFFSET) {
+                value = PRODUCER + value;
+            }
+            message.putProperties(key, value);
+        }
+        return message;
+    }
+
+    private String readKey(ByteBuffer buffer) throws BufferUnderflowException {
+        byte length = buffer.get(); // one byte
+        if (length == KEY_HEADER_KEY) {
+            return HEADER_KEY;
+        } else if (length == KEY_PRO_OFFSET) {
+            return PRO_OFFSET;
+        }
+        return readString(buffer, length);
+    }
+    
+    private String readValue(ByteBuffer buffer) {
+        String value = readString(buffer, lengthToNul(buffer));
+        buffer.get(); // NUL
+        return value;
+    }
+    
+    private byte[] readBody(ByteBuffer buffer) {
+        int length = lengthToNul(buffer);
+        if (length == 0) {
+            buffer.get();
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.get(body);
+        buffer.get(); // NUL
+        return body;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = length <= SCRATCH_SIZE ? SCRATCH.get() : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length);
+    }
+
+    // Scans the buffer from its position for the terminating NUL
+    private static int lengthToNul(ByteBuffer buffer) {
+        final int start = buffer.position();
+        int position = start;
+        while (buffer.get(position) != NUL) {
+            position++;
+        }
+        return position - start;
+    }
+}
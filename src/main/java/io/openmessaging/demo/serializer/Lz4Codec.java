@@ -0,0 +1,175 @@
+package io.openmessaging.demo.serializer;
+
+/**
+ * Pure Java encoder and decoder of the LZ4 block format.
+ * <p>
+ * The encoder is the single-pass greedy one: a hash table of the last position of every 4-byte
+ * sequence, no chaining. It compresses less than the reference implementation at its default
+ * level, but the blocks can be decoded by any LZ4 decoder.
+ */
+final class Lz4Codec implements Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5; // The block ends with at least this many literals
+    private static final int MF_LIMIT = 12; // No match starts closer to the end of the block
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+
+    @Override public byte id() {
+        return 1;
+    }
+
+    @Override public String name() {
+        return "lz4";
+    }
+
+    @Override public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        final int srcEnd = srcOffset + length;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        if (length > MF_LIMIT) {
+            final int[] table = new int[1 << HASH_LOG];
+            // Positions are stored plus one, zero is an empty slot
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - 1;
+                table[h] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+
+                int literals = ip - anchor;
+                int tokenPosition = op++;
+                int token;
+                if (literals >= RUN_MASK) {
+                    token = RUN_MASK << 4;
+                    op = writeLength(dst, op, literals - RUN_MASK);
+                } else {
+                    token = literals << 4;
+                }
+                System.arraycopy(src, anchor, dst, op, literals);
+                op += literals;
+
+                int offset = ip - ref;
+                dst[op++] = (byte) offset;
+                dst[op++] = (byte) (offset >>> 8);
+
+                int extra = matchLength - MIN_MATCH;
+                if (extra >= RUN_MASK) {
+                    token |= RUN_MASK;
+                    op = writeLength(dst, op, extra - RUN_MASK);
+                } else {
+                    token |= extra;
+                }
+                dst[tokenPosition] = (byte) token;
+
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        int literals = srcEnd - anchor;
+        if (literals >= RUN_MASK) {
+            dst[op++] = (byte) (RUN_MASK << 4);
+            op = writeLength(dst, op, literals - RUN_MASK);
+        } else {
+            dst[op++] = (byte) (literals << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        return op - dstOffset;
+    }
+
+    @Override public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int dstLength) {
+        final int srcEnd = srcOffset + length;
+        final int dstEnd = dstOffset + dstLength;
+        int ip = srcOffset;
+        int op = dstOffset;
+        while (true) {
+            if (ip >= srcEnd) throw malformed();
+            int token = src[ip++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) throw malformed();
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > srcEnd - ip || literals > dstEnd - op) throw malformed();
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd) break; // The last sequence has no match
+
+            if (srcEnd - ip < 2) throw malformed();
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) throw malformed();
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOffset || matchLength > dstEnd - op) throw malformed();
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // Overlapping match, repeats the last offset bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != dstEnd) throw malformed();
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return (buffer[position] & 0xff) | (buffer[position + 1] & 0xff) << 8
+                | (buffer[position + 2] & 0xff) << 16 | (buffer[position + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed LZ4 block");
+    }
+}
@@ -0,0 +1,18 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes messages from a bucket buffer
+ */
+public interface MessageDeserializer {
+
+    /**
+     * Reads the message at the position of the buffer and advances past it.
+     *
+     * @return the message, or null if there is no more message in the buffer
+     */
+    Message read(ByteBuffer buffer);
+}
@@ -4,191 +4,580 @@ import io.openmessaging.BytesMessage;
 import io.openmessaging.KeyValue;
 import io.openmessaging.Message;
 import io.openmessaging.demo.DefaultBytesMessage;
+import io.openmessaging.demo.DefaultKeyValue;
 
 import java.nio.BufferOverflowException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Message Serializer
+ * <p>
+ * Every message is stored as one length-prefixed record, so that any field can be skipped without scanning it
+ * and bodies may contain any byte:
+ * <pre>
+ * record    := int length, [int checksum], payload (length bytes)
+ * payload   := byte attributes (0), varint body length, body, keyValues headers, keyValues properties
+ *            | byte attributes ({@link #BATCH}), int count, record * count
+ *            | byte attributes ({@link #BATCH} | {@link #COMPRESSED}), int count, byte codec,
+ *              varint uncompressed length, compressed (record * count)
+ * keyValues := varint count, (key value) * count
+ * key       := varint code: 0 for "MessageId", 1 for "PRO_OFFSET" whose value starts with "PRODUCER" (the prefix
+ *              is left out of the value), both with a string value; otherwise 2 + (n &lt;&lt; 3 | type &lt;&lt; 1 | literal)
+ *              where n is the id of a key numbered by the {@link KeyDictionary} of the bucket, or the length of a
+ *              literal key followed by its bytes
+ * value     := string: varint length, bytes | int: zigzag varint | long: zigzag varint | double: 8 bytes
+ * </pre>
+ * Strings are UTF-8. A zero length marks the end of the written data, {@link #END_OF_SEGMENT} the end of a segment.
+ * When {@link #CHECKSUM_FLAG} is set in the length, the record carries the CRC32 of its payload, so torn or rotten
+ * records can be detected on read.
+ * <p>
+ * A batch is appended as one record enclosing the records of its messages, which carry no checksum of their own.
+ * The batch always carries one, verified before the batch is entered even when checksums are not verified
+ * otherwise: a batch torn by a crash is skipped as a whole instead of read up to its first missing record.
+ * Readers then go on reading the enclosed records as usual.
+ * The records of a compressed batch are decompressed as a block, and read from it before going on with the buffer.
+ * <p>
+ * The serializer is thread-safe. Reading goes through a {@link Deserializer} per stream of records, which keeps the
+ * block and the format of the segment being read.
+ * <p>
+ * A lazy deserializer only checks the body of a record against its length, the headers and properties of the
+ * {@link LazyBytesMessage} are decoded on access; a malformed one is then reported by an exception instead of
+ * being skipped.
  *
  * Created by yfu on 5/21/17.
  */
 public final class MessageSerializer {
 
-    private final static byte NUL = (byte)0;
+    public final static int RECORD_HEADER_SIZE = 4;
+    public final static int CHECKSUM_SIZE = 4;
 
-    private final static int START_K = 16;
-    
-    private final static byte KEY_HEADER_KEY = (byte)0xff;
-    private final static byte KEY_PRO_OFFSET = (byte)0xfe;
+    // Length written where a segment was rolled over
+    public final static int END_OF_SEGMENT = -1;
+
+    public final static int CHECKSUM_FLAG = 0x40000000;
+    private final static int LENGTH_MASK = CHECKSUM_FLAG - 1;
+
+    private final static byte NO_ATTRIBUTES = 0;
+    // Attribute of a record enclosing a batch of records
+    public final static byte BATCH = 0x01;
+    public final static byte COMPRESSED = 0x02;
+
+    // Space to leave in front of the records of a batch, see writeBatchHeader
+    public final static int MAX_BATCH_HEADER_SIZE = RECORD_HEADER_SIZE + CHECKSUM_SIZE + 1 + 4;
+
+    private final static int KEY_HEADER_KEY = 0;
+    private final static int KEY_PRO_OFFSET = 1;
+    private final static int KEY_LITERAL = 2;
+    // Lowest bit of the code of a key
+    private final static int KEY_NUMBERED = 0;
+    private final static int KEY_UNNUMBERED = 1;
+    private final static int TYPE_SHIFT = 1;
+    private final static int KEY_SHIFT = 3;
+    // Types of values
+    private final static int STRING = 0;
+    private final static int INT = 1;
+    private final static int LONG = 2;
+    private final static int DOUBLE = 3;
     private final static String HEADER_KEY = "MessageId";
     private final static String PRO_OFFSET = "PRO_OFFSET";
     private final static String PRODUCER = "PRODUCER";
-    
-    // ATTENTION! Because of this, all reading functions should only be called in single thread
-    private final byte[] buf = new byte[101 * 1024];
+
+    // Strings of buffers without an array are copied here first
+    private final static int SCRATCH_SIZE = 32 * 1024;
+    private final static ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+    private final static ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+
+    private final boolean checksum;
+    private final boolean verifyChecksum;
+    // Numbers the keys written
+    private final KeyDictionary dictionary;
+    // Read messages as views over the buffer, see LazyBytesMessage
+    private final boolean lazy;
+
+    public MessageSerializer() {
+        this(false, false);
+    }
+
+    /**
+     * @param checksum       write a checksum with every record
+     * @param verifyChecksum verify the checksum of the records that carry one
+     */
+    public MessageSerializer(boolean checksum, boolean verifyChecksum) {
+        this(checksum, verifyChecksum, null);
+    }
+
+    /**
+     * @param dictionary numbers the keys of the written records, null to write them literally
+     */
+    public MessageSerializer(boolean checksum, boolean verifyChecksum, KeyDictionary dictionary) {
+        this(checksum, verifyChecksum, dictionary, false);
+    }
+
+    /**
+     * @param lazy read messages as {@link LazyBytesMessage} views over the buffer read
+     */
+    public MessageSerializer(boolean checksum, boolean verifyChecksum, KeyDictionary dictionary, boolean lazy) {
+        this.checksum = checksum;
+        this.verifyChecksum = verifyChecksum;
+        this.dictionary = dictionary;
+        this.lazy = lazy;
+    }
+
+    // Messages read may refer to the buffer they were read from
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * @return a deserializer of one stream of records, such as a bucket
+     */
+    public Deserializer newDeserializer() {
+        return new Deserializer();
+    }
 
     public int getSize(Message message) {
         byte[] body = ((BytesMessage) message).getBody();
-        return body.length + 1 + getKeyValueSize(message.headers()) + getKeyValueSize(message.properties());
+        return RECORD_HEADER_SIZE + (checksum ? CHECKSUM_SIZE : 0) + 1 + Varints.size(body.length) + body.length
+                + getKeyValueSize(message.headers()) + getKeyValueSize(message.properties());
     }
 
     private int getKeyValueSize(KeyValue keyValue) {
-        int size = 1;
-        if (keyValue == null) return size;
+        if (keyValue == null) return 1;
+        if (keyValue instanceof DefaultKeyValue) {
+            DefaultKeyValue kvs = (DefaultKeyValue) keyValue;
+            int size = Varints.size(kvs.size());
+            for (int i = 0; i < kvs.size(); i++) {
+                String key = kvs.keyAt(i);
+                switch (kvs.typeAt(i)) {
+                    case DefaultKeyValue.INT:
+                        size += getKeySize(key) + 5;
+                        break;
+                    case DefaultKeyValue.LONG:
+                        size += getKeySize(key) + 10;
+                        break;
+                    case DefaultKeyValue.DOUBLE:
+                        size += getKeySize(key) + 8;
+                        break;
+                    default:
+                        size += getStringSize(key, kvs.stringAt(i));
+                }
+            }
+            return size;
+        }
         Set<String> keySet = keyValue.keySet();
+        int size = Varints.size(keySet.size());
         for (String key : keySet) {
-            String value = keyValue.getString(key);
-            if (HEADER_KEY.equals(key)) {
-                size += 2 + value.length();
-            } else if (PRO_OFFSET.equals(key) && value.startsWith(PRODUCER)) {
-                size += 2 + value.length() - PRODUCER.length();
-            } else {
-                // This is not correct when string contains non-ascii char
-                // Correct but slower: key.getBytes().length
-                size += 1 + key.length();
-                size += 1 + value.length();
-            }
+            size += getStringSize(key, keyValue.getString(key));
         }
         return size;
     }
 
+    // This is not correct when string contains non-ascii char
+    // Correct but slower: key.getBytes(StandardCharsets.UTF_8).length
+    private static int getStringSize(String key, String value) {
+        int size;
+        if (HEADER_KEY.equals(key)) {
+            size = 1;
+        } else if (PRO_OFFSET.equals(key) && value.startsWith(PRODUCER)) {
+            size = 1;
+            value = value.substring(PRODUCER.length());
+        } else {
+            size = getKeySize(key);
+        }
+        return size + Varints.size(value.length()) + value.length();
+    }
+
+    // Numbered keys take less
+    private static int getKeySize(String key) {
+        return Varints.size(KEY_LITERAL + (key.length() << KEY_SHIFT)) + key.length();
+    }
+
+    /**
+     * Writes the record of a message at the position of the buffer
+     *
+     * @throws BufferOverflowException if the record does not fit before the limit, the position is then undefined
+     */
     public void write(ByteBuffer buffer, Message message) throws BufferOverflowException {
+        write(buffer, message, checksum);
+    }
+
+    // Writes the record of a message enclosed in a batch
+    public void writeBatched(ByteBuffer buffer, Message message) throws BufferOverflowException {
+        write(buffer, message, false);
+    }
+
+    /**
+     * Writes the record enclosing a batch in front of its records, with a checksum
+     *
+     * @param batch {@link #MAX_BATCH_HEADER_SIZE} bytes of room followed by the records up to the limit,
+     *              it is positioned at the start of the written record
+     * @param count number of enclosed records
+     * @throws BufferOverflowException if the batch has no room for the header
+     */
+    public void writeBatchHeader(ByteBuffer batch, int count) throws BufferOverflowException {
+        if (batch.limit() < MAX_BATCH_HEADER_SIZE) throw new BufferOverflowException();
+        final int payloadStart = MAX_BATCH_HEADER_SIZE - 1 - 4;
+        final int start = payloadStart - RECORD_HEADER_SIZE - CHECKSUM_SIZE;
+        batch.put(payloadStart, BATCH);
+        batch.putInt(payloadStart + 1, count);
+        final int length = batch.limit() - payloadStart;
+        batch.putInt(start + RECORD_HEADER_SIZE, checksum(batch, payloadStart, length));
+        batch.putInt(start, length | CHECKSUM_FLAG);
+        batch.position(start);
+    }
+
+    // Upper bound of the size of a compressed batch of records
+    public static int maxCompressedBatchSize(Codec codec, int length) {
+        return RECORD_HEADER_SIZE + CHECKSUM_SIZE + 1 + 4 + 1 + 5 + codec.maxCompressedLength(length);
+    }
+
+    /**
+     * Writes the record enclosing a compressed batch, with a checksum
+     *
+     * @param buffer  heap buffer with room for {@link #maxCompressedBatchSize(Codec, int)}, the
+     *                record is written at its position
+     * @param records heap buffer holding the records between its position and its limit
+     * @return false, with nothing written, if compression does not save space
+     * @throws BufferOverflowException if the buffer has less room than the upper bound
+     */
+    public boolean writeCompressedBatch(ByteBuffer buffer, ByteBuffer records, int count, Codec codec)
+            throws BufferOverflowException {
+        final int length = records.remaining();
+        if (buffer.remaining() < maxCompressedBatchSize(codec, length)) throw new BufferOverflowException();
+        final int start = buffer.position();
+        final int payloadStart = start + RECORD_HEADER_SIZE + CHECKSUM_SIZE;
+        buffer.position(payloadStart);
+        buffer.put((byte) (BATCH | COMPRESSED));
+        buffer.putInt(count);
+        buffer.put(codec.id());
+        Varints.put(buffer, length);
+        final int dataStart = buffer.position();
+        final int compressedLength = codec.compress(records.array(), records.arrayOffset() + records.position(), length,
+                buffer.array(), buffer.arrayOffset() + dataStart);
+        if (dataStart + compressedLength - start >= length) {
+            buffer.position(start);
+            return false;
+        }
+        buffer.position(dataStart + compressedLength);
+
+        final int payloadLength = buffer.position() - payloadStart;
+        buffer.putInt(start + RECORD_HEADER_SIZE, checksum(buffer, payloadStart, payloadLength));
+        buffer.putInt(start, payloadLength | CHECKSUM_FLAG);
+        return true;
+    }
+
+    private void write(ByteBuffer buffer, Message message, boolean checksum) throws BufferOverflowException {
         // TODO: only support BytesMessage currently
         byte[] body = ((BytesMessage) message).getBody();
-        buffer.put(body).put(NUL);  // C-style
+        final int start = buffer.position();
+        final int payloadStart = start + RECORD_HEADER_SIZE + (checksum ? CHECKSUM_SIZE : 0);
+        // Moving past the limit would not report an overflow
+        if (buffer.limit() < payloadStart) throw new BufferOverflowException();
+        buffer.position(payloadStart);
+        buffer.put(NO_ATTRIBUTES);
+        Varints.put(buffer, body.length);
+        buffer.put(body);
 
         write(buffer, message.headers());
         write(buffer, message.properties());
+
+        int length = buffer.position() - payloadStart;
+        if (checksum) {
+            buffer.putInt(start + RECORD_HEADER_SIZE, checksum(buffer, payloadStart, length));
+            length |= CHECKSUM_FLAG;
+        }
+        buffer.putInt(start, length);
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + length).position(offset);
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue();
     }
 
     private void write(ByteBuffer buffer, KeyValue keyValue) throws BufferOverflowException {
         if (keyValue == null) {
-            buffer.put((byte)0);
+            Varints.put(buffer, 0);
             return;
         }
-        Set<String> keySet = keyValue.keySet();
-        int size = keySet.size();
-        if (size > 127) {
-            throw new RuntimeException("keyValue has too many entries (at most 127 entries), size=" + size);
+        if (keyValue instanceof DefaultKeyValue) {
+            // Typed values, read without boxing
+            DefaultKeyValue kvs = (DefaultKeyValue) keyValue;
+            Varints.put(buffer, kvs.size());
+            for (int i = 0; i < kvs.size(); i++) {
+                String key = kvs.keyAt(i);
+                switch (kvs.typeAt(i)) {
+                    case DefaultKeyValue.INT:
+                        writeKey(buffer, key, INT);
+                        Varints.putSigned(buffer, (int) kvs.bitsAt(i));
+                        break;
+                    case DefaultKeyValue.LONG:
+                        writeKey(buffer, key, LONG);
+                        Varints.putSignedLong(buffer, kvs.bitsAt(i));
+                        break;
+                    case DefaultKeyValue.DOUBLE:
+                        writeKey(buffer, key, DOUBLE);
+                        buffer.putLong(kvs.bitsAt(i));
+                        break;
+                    default:
+                        writeString(buffer, key, kvs.stringAt(i));
+                }
+            }
+            return;
         }
-        buffer.put((byte)size);
+        // Only strings are known of other implementations
+        Set<String> keySet = keyValue.keySet();
+        Varints.put(buffer, keySet.size());
         for (String key : keySet) {
-            String value = keyValue.getString(key);
-            if (HEADER_KEY.equals(key)) {
-                buffer.put(KEY_HEADER_KEY);
-                writeValue(buffer, value);
-            } else if (PRO_OFFSET.equals(key) && value.startsWith(PRODUCER)) {
-                buffer.put(KEY_PRO_OFFSET);
-                writeValue(buffer, value.substring(PRODUCER.length()));
-            } else {
-                writeKey(buffer, key);
-                writeValue(buffer, value);
-            }
+            writeString(buffer, key, keyValue.getString(key));
         }
     }
 
-    // write short string (length <= 127)
-    private void writeKey(ByteBuffer buffer, String string) {
-        if (string.length() > 127) {
-            throw new RuntimeException("key is too long (at most 127 bytes), length=" + string.length());
+    private void writeString(ByteBuffer buffer, String key, String value) {
+        if (HEADER_KEY.equals(key)) {
+            Varints.put(buffer, KEY_HEADER_KEY);
+        } else if (PRO_OFFSET.equals(key) && value.startsWith(PRODUCER)) {
+            Varints.put(buffer, KEY_PRO_OFFSET);
+            value = value.substring(PRODUCER.length());
+        } else {
+            writeKey(buffer, key, STRING);
         }
-        byte[] valueBytes = string.getBytes();
-        buffer.put((byte)valueBytes.length);
-        buffer.put(valueBytes);
+        writeBytes(buffer, value.getBytes(StandardCharsets.UTF_8));
     }
 
-    // write short string (length <= 32767)
-    private void writeValue(ByteBuffer buffer, String string) {
-        if (string.length() > 32767) {
-            throw new RuntimeException("value is too long (at most 32767 bytes), length=" + string.length());
+    private void writeKey(ByteBuffer buffer, String key, int type) {
+        int id = dictionary == null ? -1 : dictionary.idOf(key);
+        if (id >= 0) {
+            Varints.put(buffer, KEY_LITERAL + (id << KEY_SHIFT | type << TYPE_SHIFT | KEY_NUMBERED));
+        } else {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            Varints.put(buffer, KEY_LITERAL + (keyBytes.length << KEY_SHIFT | type << TYPE_SHIFT | KEY_UNNUMBERED));
+            buffer.put(keyBytes);
         }
-        byte[] valueBytes = string.getBytes();
-        buffer.put(valueBytes).put(NUL); // C-style
     }
-    
-    public Message read(ByteBuffer buffer) throws BufferUnderflowException {
-        if (!buffer.hasRemaining()) return null;
-        
-        byte[] body = readBody(buffer);
-        if (body == null) return null;
-        BytesMessage message = new DefaultBytesMessage(body);
 
-        int numHeaders = buffer.get(); // one byte
-        for (int i = 0; i < numHeaders; i++) {
-            String key = readKey(buffer);
-            String value = readValue(buffer);
-            message.putHeaders(key, value);
+    private void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        Varints.put(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads the records of one stream. It keeps the keys of the bucket being read and the records of the
+     * compressed batch being read, so it belongs to a single reader; the serializer may be shared.
+     */
+    public final class Deserializer implements MessageDeserializer {
+        // Resolves the keys read
+        private KeyDictionary dictionary;
+
+        // Records of the compressed batch being read, null once they are all read
+        private ByteBuffer block;
+        private byte[] blockBytes = new byte[0];
+        private byte[] compressedBytes = new byte[0];
+
+        private Deserializer() {
+        }
+
+        /**
+         * @param dictionary keys of the bucket about to be read
+         */
+        public void setDictionary(KeyDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * @throws CorruptRecordException if the record fails its checksum or cannot be decoded, it is skipped
+         */
+        @Override
+        public Message read(ByteBuffer buffer) throws CorruptRecordException {
+            if (block != null) {
+                Message message = readRecord(block);
+                if (message != null) return message;
+                block = null;
+            }
+            return readRecord(buffer);
         }
 
-        int numProperties = buffer.get(); // one byte
-        for (int i = 0; i < numProperties; i++) {
-            byte length = buffer.get(); // one byte
+        private Message readRecord(ByteBuffer buffer) throws CorruptRecordException {
+            if (buffer.remaining() < RECORD_HEADER_SIZE) return null;
+            final int start = buffer.position();
+            final int lengthField = buffer.getInt(start);
+            if (lengthField <= 0) return null; // End of the written data
+
+            final boolean hasChecksum = (lengthField & CHECKSUM_FLAG) != 0;
+            final int length = lengthField & LENGTH_MASK;
+            final int payloadStart = start + RECORD_HEADER_SIZE + (hasChecksum ? CHECKSUM_SIZE : 0);
+            if (length > buffer.limit() - payloadStart) {
+                // A record torn by a crash, nothing can be trusted after it
+                return null;
+            }
+            final int end = payloadStart + length;
+            buffer.position(end);
+
+            final byte attributes = buffer.get(payloadStart);
+            // A batch is verified in any case, a torn one would otherwise be read up to its first missing record
+            if (hasChecksum && (verifyChecksum || attributes != NO_ATTRIBUTES)
+                    && buffer.getInt(start + RECORD_HEADER_SIZE) != checksum(buffer, payloadStart, length)) {
+                throw new CorruptRecordException("Checksum mismatch, record skipped at position " + start, true);
+            }
+            if ((attributes & BATCH) != 0 && length < 1 + 4) {
+                throw new CorruptRecordException("Truncated batch header skipped at position " + start, false);
+            }
+            if (attributes == BATCH) {
+                // Go on with the first enclosed record
+                buffer.position(payloadStart + 1 + 4);
+                return readRecord(buffer);
+            }
+            if (attributes == (BATCH | COMPRESSED)) {
+                try {
+                    decompress(buffer, payloadStart, end);
+                } catch (RuntimeException ex) {
+                    throw new CorruptRecordException("Malformed compressed batch skipped at position " + start, ex);
+                } finally {
+                    buffer.position(end);
+                }
+                return read(buffer);
+            }
+
+            buffer.position(payloadStart);
+            try {
+                Message message = readPayload(buffer, end);
+                buffer.position(end);
+                return message;
+            } catch (RuntimeException ex) {
+                buffer.position(end);
+                throw new CorruptRecordException("Malformed record skipped at position " + start, ex);
+            }
+        }
+
+        private void decompress(ByteBuffer buffer, int payloadStart, int end) {
+            buffer.position(payloadStart + 1 + 4);
+            Codec codec = Codecs.forId(buffer.get());
+            int length = Varints.get(buffer);
+            int compressedLength = end - buffer.position();
+            if (compressedBytes.length < compressedLength) compressedBytes = new byte[compressedLength];
+            buffer.get(compressedBytes, 0, compressedLength);
+            // Lazy messages keep referring to the block after the next one is decompressed
+            if (lazy || blockBytes.length < length) blockBytes = new byte[length];
+            codec.decompress(compressedBytes, 0, compressedLength, blockBytes, 0, length);
+            block = ByteBuffer.wrap(blockBytes, 0, length);
+        }
+
+        private Message readPayload(ByteBuffer buffer, int end) {
+            buffer.get(); // attributes
+            final int bodyLength = Varints.get(buffer);
+            if (lazy) {
+                final int bodyStart = buffer.position();
+                if (bodyLength > end - bodyStart) throw new IllegalStateException("Body overflows the record");
+                return new LazyBytesMessage(buffer.duplicate(), bodyStart, bodyLength, dictionary);
+            }
+            byte[] body = new byte[bodyLength];
+            buffer.get(body);
+
+            DefaultKeyValue headers = new DefaultKeyValue();
+            readKeyValues(buffer, Varints.get(buffer), headers, true, dictionary);
+            DefaultKeyValue properties = null;
+            int numProperties = Varints.get(buffer);
+            if (numProperties > 0) {
+                properties = new DefaultKeyValue();
+                readKeyValues(buffer, numProperties, properties, true, dictionary);
+            }
+            return new DefaultBytesMessage(body, headers, properties);
+        }
+    }
+
+    /**
+     * Reads key values into a key value
+     *
+     * @param replace    replace the values of the keys already in {@code target}, or keep them
+     * @param dictionary keys of the bucket
+     */
+    static void readKeyValues(ByteBuffer buffer, int count, KeyValue target, boolean replace,
+                              KeyDictionary dictionary) {
+        for (int i = 0; i < count; i++) {
+            int code = Varints.get(buffer);
             String key;
-            if (length == KEY_HEADER_KEY) {
+            int type = STRING;
+            if (code == KEY_HEADER_KEY) {
                 key = HEADER_KEY;
-            } else if (length == KEY_PRO_OFFSET) {
+            } else if (code == KEY_PRO_OFFSET) {
                 key = PRO_OFFSET;
             } else {
-                buffer.get(buf, 0, length);
-                key = new String(buf, 0, length);
+                int bits = code - KEY_LITERAL;
+                type = (bits >>> TYPE_SHIFT) & 3;
+                int n = bits >>> KEY_SHIFT;
+                key = (bits & 1) == KEY_NUMBERED ? dictionary.key(n) : readString(buffer, n);
             }
-            
-            String value = readValue(buffer);
-            if (length == KEY_PRO_OFFSET) {
-                value = PRODUCER + value;
+            boolean put = replace || !target.containsKey(key);
+
+            switch (type) {
+                case INT:
+                    int intValue = Varints.getSigned(buffer);
+                    if (put) target.put(key, intValue);
+                    break;
+                case LONG:
+                    long longValue = Varints.getSignedLong(buffer);
+                    if (put) target.put(key, longValue);
+                    break;
+                case DOUBLE:
+                    double doubleValue = buffer.getDouble();
+                    if (put) target.put(key, doubleValue);
+                    break;
+                default:
+                    int length = Varints.get(buffer);
+                    if (!put) {
+                        buffer.position(buffer.position() + length);
+                        break;
+                    }
+                    String value = readString(buffer, length);
+                    target.put(key, code == KEY_PRO_OFFSET ? PRODUCER + value : value);
             }
-            message.putProperties(key, value);
-        }
-        return message;
-    }
-
-    private String readKey(ByteBuffer buffer) throws BufferUnderflowException {
-        byte length = buffer.get(); // one byte
-        if (length == KEY_HEADER_KEY) {
-            return HEADER_KEY;
-        } else if (length == KEY_PRO_OFFSET) {
-            return PRO_OFFSET;
-        }
-        buffer.get(buf, 0, length);
-        return new String(buf, 0, length);
-    }
-    
-    private String readValue(ByteBuffer buffer) throws BufferOverflowException {
-        int position = readCStyleString(buffer);
-        return new String(buf, 0, position);
-    }
-    
-    private byte[] readBody(ByteBuffer buffer) {
-        int position = readCStyleString(buffer);
-        if (position == 0) return null;
-        return Arrays.copyOf(buf, position);
-    }
-    
-    private int readCStyleString(ByteBuffer buffer) {
-        final int bufferPosition = buffer.position();
-        int limit = 0;
-        int position = 0;
-        for (int k = START_K; position == limit; k <<= 1) {
-            try {
-                buffer.mark();
-                buffer.get(buf, limit, k);
-            } catch (BufferUnderflowException ex) {
-                buffer.reset();
-                k = buffer.remaining();
-                buffer.get(buf, limit, k);
+        }
+    }
+
+    /**
+     * Moves the buffer past key values, without decoding them
+     */
+    static void skipKeyValues(ByteBuffer buffer) {
+        int count = Varints.get(buffer);
+        for (int i = 0; i < count; i++) {
+            int code = Varints.get(buffer);
+            int type = STRING;
+            if (code >= KEY_LITERAL) {
+                int bits = code - KEY_LITERAL;
+                type = (bits >>> TYPE_SHIFT) & 3;
+                if ((bits & 1) == KEY_UNNUMBERED) {
+                    buffer.position(buffer.position() + (bits >>> KEY_SHIFT));
+                }
             }
-            limit += k;
-            while (buf[position] != NUL &&  position < limit) {
-                position++;
+            switch (type) {
+                case INT:
+                case LONG:
+                    Varints.getLong(buffer);
+                    break;
+                case DOUBLE:
+                    buffer.position(buffer.position() + 8);
+                    break;
+                default:
+                    int length = Varints.get(buffer);
+                    buffer.position(buffer.position() + length);
             }
         }
-        buffer.position(bufferPosition + position + 1);
-        return position;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        final int position = buffer.position();
+        if (buffer.hasArray()) {
+            buffer.position(position + length);
+            return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = length <= SCRATCH_SIZE ? SCRATCH.get() : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
 }
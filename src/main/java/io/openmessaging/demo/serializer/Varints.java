@@ -0,0 +1,77 @@
+package io.openmessaging.demo.serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 variable-length integers: 7 bits per byte, high bit set on all but the last byte.
+ * Signed values are zigzag encoded first, so that small negative values stay short.
+ */
+final class Varints {
+
+    private Varints() {
+    }
+
+    static int size(int value) {
+        if ((value & (~0 << 7)) == 0) return 1;
+        if ((value & (~0 << 14)) == 0) return 2;
+        if ((value & (~0 << 21)) == 0) return 3;
+        if ((value & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+
+    static void put(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static void putSigned(ByteBuffer buffer, int value) {
+        put(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    static void putSignedLong(ByteBuffer buffer, long value) {
+        putLong(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    static int get(ByteBuffer buffer) {
+        int b = buffer.get();
+        if (b >= 0) return b;  // one byte, the common case
+        int value = b & 0x7f;
+        for (int shift = 7; shift < 35; shift += 7) {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static long getLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static int getSigned(ByteBuffer buffer) {
+        int value = get(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long getSignedLong(ByteBuffer buffer) {
+        long value = getLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,75 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.Message;
+import io.openmessaging.MessageHeader;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchPollTest {
+
+    private static final int MESSAGES = 1000;
+
+    @Test
+    public void mixedPollsDeliverEveryMessageInOrder() {
+        pollMixed("BATCH_QUEUE", "BATCH_TOPIC", false);
+    }
+
+    @Test
+    public void mixedPollsOfReaderTasksDeliverEveryMessageInOrder() {
+        pollMixed("BATCH_PARALLEL_QUEUE", "BATCH_PARALLEL_TOPIC", true);
+    }
+
+    private static void pollMixed(String queue, String topic, boolean parallel) {
+        DefaultKeyValue properties = TestStore.properties();
+        properties.put(Constants.PARALLEL_READERS, String.valueOf(parallel));
+        DefaultProducer producer = new DefaultProducer(properties);
+        for (int i = 0; i < MESSAGES; i++) {
+            BytesMessage toQueue = producer.createBytesMessageToQueue(queue, new byte[10]);
+            toQueue.putHeaders("Index", i);
+            producer.send(toQueue);
+            BytesMessage toTopic = producer.createBytesMessageToTopic(topic, new byte[10]);
+            toTopic.putHeaders("Index", i);
+            producer.send(toTopic);
+        }
+        producer.shutdown();
+
+        DefaultPullConsumer consumer = new DefaultPullConsumer(properties);
+        consumer.attachQueue(queue, Collections.singletonList(topic));
+        DefaultKeyValue batchPull = new DefaultKeyValue();
+        batchPull.put(Constants.POLL_MAX_MESSAGES, 50);
+        int nextOfQueue = 0;
+        int nextOfTopic = 0;
+        List<Message> messages = new ArrayList<>();
+        for (int call = 0; ; call++) {
+            // A batch pull, then single polls and batch polls returning the messages it fetched
+            messages.clear();
+            if (call % 3 == 0) {
+                Message message = consumer.poll(batchPull);
+                if (message != null) messages.add(message);
+            } else if (call % 3 == 1) {
+                Message message = consumer.poll();
+                if (message != null) messages.add(message);
+            } else {
+                consumer.poll(20, messages);
+            }
+            if (messages.isEmpty()) break;
+            for (Message message : messages) {
+                if (queue.equals(message.headers().getString(MessageHeader.QUEUE))) {
+                    assertEquals(nextOfQueue++, message.headers().getInt("Index"));
+                } else {
+                    assertEquals(topic, message.headers().getString(MessageHeader.TOPIC));
+                    assertEquals(nextOfTopic++, message.headers().getInt("Index"));
+                }
+            }
+        }
+        consumer.shutdown();
+        assertEquals(MESSAGES, nextOfQueue);
+        assertEquals(MESSAGES, nextOfTopic);
+    }
+}
@@ -0,0 +1,79 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.Message;
+import io.openmessaging.MessageHeader;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class FollowConsumerTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES = 50000;
+
+    @Test(timeout = 60000)
+    public void pollsEveryMessageWrittenMeanwhileThenFinishes() throws Exception {
+        follow("FOLLOW_QUEUE", false);
+    }
+
+    @Test(timeout = 60000)
+    public void readerTasksPollEveryMessageWrittenMeanwhileThenFinish() throws Exception {
+        follow("FOLLOW_PARALLEL_QUEUE", true);
+    }
+
+    // The producers commit out of order, the consumer reads the bucket while they write it and until they close it
+    private static void follow(String queue, boolean parallel) throws Exception {
+        DefaultKeyValue properties = TestStore.properties();
+        properties.put(Constants.FOLLOW, "true");
+        properties.put(Constants.PARALLEL_READERS, String.valueOf(parallel));
+        DefaultPullConsumer consumer = new DefaultPullConsumer(properties);
+        consumer.attachQueue(queue, Collections.emptyList());
+
+        int[] next = new int[PRODUCERS];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread poller = new Thread(() -> {
+            try {
+                Message message;
+                while ((message = consumer.poll()) != null) {
+                    int producer = message.headers().getInt("Producer");
+                    assertEquals(next[producer]++, message.headers().getInt("Index"));
+                    assertEquals(queue, message.headers().getString(MessageHeader.QUEUE));
+                }
+            } catch (Throwable ex) {
+                failure.set(ex);
+            }
+        });
+        poller.start();
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int id = p;
+            // Created up front, so the store stays open until the last of them shuts down
+            DefaultProducer producer = new DefaultProducer(properties);
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    BytesMessage message = producer.createBytesMessageToQueue(queue, new byte[100]);
+                    message.putHeaders("Producer", id);
+                    message.putHeaders("Index", i);
+                    producer.send(message);
+                }
+                producer.shutdown();
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        // The last producer closed the bucket, the polls return null once it is read to its end
+        poller.join();
+        consumer.shutdown();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(MESSAGES, next[p]);
+        }
+    }
+}
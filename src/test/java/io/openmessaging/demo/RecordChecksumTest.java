@@ -0,0 +1,69 @@
+package io.openmessaging.demo;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.Message;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordChecksumTest {
+
+    private static final String QUEUE = "CHECKSUM_QUEUE";
+    private static final int MESSAGES = 1000;
+    private static final int CORRUPTED = 500;
+
+    private static byte[] body(int i) {
+        return String.format("body %08d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void skipsAndCountsCorruptedRecord() throws Exception {
+        DefaultKeyValue properties = TestStore.properties();
+        properties.put(Constants.RECORD_CHECKSUM, "true");
+        DefaultProducer producer = new DefaultProducer(properties);
+        for (int i = 0; i < MESSAGES; i++) {
+            BytesMessage message = producer.createBytesMessageToQueue(QUEUE, body(i));
+            message.putHeaders("Index", i);
+            producer.send(message);
+        }
+        producer.shutdown();
+
+        // Flip a bit of the body of one record
+        Path segment = TestStore.PATH.resolve(QUEUE).resolve(Segments.fileName(0));
+        byte[] bytes = Files.readAllBytes(segment);
+        int position = indexOf(bytes, body(CORRUPTED));
+        assertTrue(position > 0);
+        bytes[position + body(CORRUPTED).length - 1] ^= 1;
+        Files.write(segment, bytes);
+
+        properties.put(Constants.VERIFY_CHECKSUM, "true");
+        DefaultPullConsumer consumer = new DefaultPullConsumer(properties);
+        consumer.attachQueue(QUEUE, Collections.emptyList());
+        int next = 0;
+        Message message;
+        while ((message = consumer.poll()) != null) {
+            if (next == CORRUPTED) next++;
+            assertEquals(next++, message.headers().getInt("Index"));
+        }
+        assertEquals(MESSAGES, next);
+        assertEquals(1, consumer.getCorruptedRecords());
+        assertEquals(1, consumer.getSkippedRecords());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        search:
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j]) continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,43 @@
+package io.openmessaging.demo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * The store the tests write to. Consumers share one BufferService per process, so every test of a run
+ * uses this store and writes buckets of its own. The store is deleted when the run ends.
+ */
+public final class TestStore {
+
+    public static final Path PATH = create();
+
+    private TestStore() {
+    }
+
+    private static Path create() {
+        try {
+            Path path = Files.createTempDirectory("store");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(path)));
+            return path;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public static DefaultKeyValue properties() {
+        DefaultKeyValue properties = new DefaultKeyValue();
+        properties.put(Constants.STORE_PATH, PATH.toString());
+        return properties;
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.walk(path).sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException ex) {
+            // Left in the temporary directory
+        }
+    }
+}
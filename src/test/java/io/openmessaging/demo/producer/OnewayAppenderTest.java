@@ -0,0 +1,68 @@
+package io.openmessaging.demo.producer;
+
+import io.openmessaging.Message;
+import io.openmessaging.MessageHeader;
+import io.openmessaging.demo.Constants;
+import io.openmessaging.demo.DefaultBytesMessage;
+import io.openmessaging.demo.DefaultKeyValue;
+import io.openmessaging.demo.DefaultPullConsumer;
+import io.openmessaging.demo.TestStore;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class OnewayAppenderTest {
+
+    private static final String QUEUE = "ONEWAY_QUEUE";
+    private static final int SENDERS = 4;
+    private static final int MESSAGES = 20000;
+
+    // A drain of 1024 of these messages takes more than one local buffer
+    private static Message newMessage(int sender, int i) {
+        DefaultBytesMessage message = new DefaultBytesMessage(new byte[200]);
+        message.putHeaders("Sender", sender);
+        message.putHeaders("Index", i);
+        message.putProperties("PRO_OFFSET", "PRODUCER" + sender + "_" + i);
+        return message;
+    }
+
+    @Test(timeout = 60000)
+    public void deliversEveryMessageSpanningSeveralLocalBuffers() throws Exception {
+        DefaultKeyValue properties = TestStore.properties();
+        properties.put(Constants.ONEWAY_BACKPRESSURE, "block");
+
+        BucketManager bucketManager = new BucketManager(properties);
+        bucketManager.retain();
+        OnewayAppender appender = bucketManager.getOnewayAppender();
+        Thread[] senders = new Thread[SENDERS];
+        for (int s = 0; s < SENDERS; s++) {
+            final int sender = s;
+            senders[s] = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    appender.send(QUEUE, newMessage(sender, i));
+                }
+            });
+            senders[s].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        bucketManager.release();
+        assertEquals(0, appender.getDroppedMessages());
+
+        DefaultPullConsumer consumer = new DefaultPullConsumer(properties);
+        consumer.attachQueue(QUEUE, Collections.emptyList());
+        int[] next = new int[SENDERS];
+        Message message;
+        while ((message = consumer.poll()) != null) {
+            int sender = message.headers().getInt("Sender");
+            assertEquals(next[sender]++, message.headers().getInt("Index"));
+            assertEquals(QUEUE, message.headers().getString(MessageHeader.QUEUE));
+        }
+        for (int s = 0; s < SENDERS; s++) {
+            assertEquals(MESSAGES, next[s]);
+        }
+    }
+}
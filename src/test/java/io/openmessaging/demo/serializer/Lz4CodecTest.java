@@ -0,0 +1,102 @@
+package io.openmessaging.demo.serializer;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Lz4CodecTest {
+
+    private final Codec codec = Codecs.LZ4;
+
+    // @return the compressed length
+    private int roundTrip(byte[] data) {
+        // Offsets in both arrays, the codec must not assume blocks start at 0
+        byte[] compressed = new byte[3 + codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, 0, data.length, compressed, 3);
+        assertTrue(length <= codec.maxCompressedLength(data.length));
+        byte[] restored = new byte[data.length + 5];
+        codec.decompress(compressed, 3, length, restored, 5, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(restored, 5, restored.length));
+        return length;
+    }
+
+    @Test
+    public void restoresShortInputs() {
+        // Blocks up to the shortest one holding a match are literals only
+        for (int length = 0; length <= 20; length++) {
+            byte[] data = new byte[length];
+            Arrays.fill(data, (byte) 'a');
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    public void restoresIncompressibleInput() {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        int length = roundTrip(data);
+        assertTrue(length > data.length);
+    }
+
+    @Test
+    public void restoresOverlappingMatches() {
+        // A run is a match at offset 1 longer than its offset, the pattern one at offset 3
+        byte[] run = new byte[10000];
+        Arrays.fill(run, (byte) 7);
+        assertTrue(roundTrip(run) < 100);
+        byte[] pattern = new byte[10000];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) (i % 3);
+        }
+        assertTrue(roundTrip(pattern) < 100);
+    }
+
+    @Test
+    public void restoresMixedInput() {
+        // Literal runs and matches of every length, at distances up to beyond the window
+        Random random = new Random(7);
+        byte[] data = new byte[300000];
+        byte[] text = "header key value PRODUCER1_ MessageId ".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < data.length; ) {
+            int length = Math.min(random.nextInt(600), data.length - i);
+            if (random.nextBoolean()) {
+                for (int j = 0; j < length; j++) {
+                    data[i + j] = text[j % text.length];
+                }
+            } else {
+                byte[] noise = new byte[length];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, data, i, length);
+            }
+            i += length;
+        }
+        assertTrue(roundTrip(data) < data.length);
+    }
+
+    @Test
+    public void rejectsMalformedBlocks() {
+        byte[] data = "abcdabcdabcdabcdabcdabcdabcdabcd".getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, 0, data.length, compressed, 0);
+        byte[] restored = new byte[data.length];
+        // Truncated, or decompressed to another length than the original one
+        assertMalformed(compressed, length - 1, restored, data.length);
+        assertMalformed(compressed, length, restored, data.length - 1);
+        assertMalformed(compressed, length, new byte[data.length + 1], data.length + 1);
+    }
+
+    private void assertMalformed(byte[] compressed, int length, byte[] restored, int restoredLength) {
+        try {
+            codec.decompress(compressed, 0, length, restored, 0, restoredLength);
+            fail("Malformed block decompressed");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package io.openmessaging.demo.serializer;
+
+import io.openmessaging.BytesMessage;
+import io.openmessaging.KeyValue;
+import io.openmessaging.Message;
+import io.openmessaging.MessageHeader;
+import io.openmessaging.demo.DefaultBytesMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageSerializerTest {
+
+    private static final int MESSAGES = 200;
+    // Longer than a numbered key may be, it stays literal
+    private static final String LITERAL_KEY = new String(new char[KeyDictionary.MAX_KEY_LENGTH + 1]).replace('\0', 'k');
+
+    private Path dictionaryPath;
+    private KeyDictionary dictionary;
+
+    @Before
+    public void createDictionary() throws IOException {
+        dictionaryPath = Files.createTempFile("keys", null);
+        Files.delete(dictionaryPath);
+        dictionary = KeyDictionary.create(dictionaryPath);
+    }
+
+    @After
+    public void deleteDictionary() throws IOException {
+        dictionary.close();
+        Files.deleteIfExists(dictionaryPath);
+    }
+
+    // Compressible body, string, int, long and double values, numbered, literal and implicit keys
+    private static Message newMessage(int i) {
+        byte[] body = ("body " + i + " of a message repeated, repeated, repeated").getBytes(StandardCharsets.UTF_8);
+        DefaultBytesMessage message = new DefaultBytesMessage(body);
+        message.putHeaders(MessageHeader.MESSAGE_ID, "ID" + i);
+        message.putHeaders("Int", -i);
+        message.putHeaders("Long", (long) i << 40);
+        if (i % 5 != 0) {
+            message.putProperties("PRO_OFFSET", "PRODUCER1_" + i);
+            message.putProperties("Double", i + 0.5);
+            message.putProperties(LITERAL_KEY, "literal " + i);
+        }
+        return message;
+    }
+
+    private static void assertMessage(int i, Message message) {
+        assertArrayEquals(((BytesMessage) newMessage(i)).getBody(), ((BytesMessage) message).getBody());
+        KeyValue headers = message.headers();
+        assertEquals(3, headers.keySet().size());
+        assertEquals("ID" + i, headers.getString(MessageHeader.MESSAGE_ID));
+        assertEquals(-i, headers.getInt("Int"));
+        assertEquals((long) i << 40, headers.getLong("Long"));
+        KeyValue properties = message.properties();
+        if (i % 5 == 0) {
+            assertNull(properties);
+            return;
+        }
+        assertEquals(3, properties.keySet().size());
+        assertEquals("PRODUCER1_" + i, properties.getString("PRO_OFFSET"));
+        assertEquals(i + 0.5, properties.getDouble("Double"), 0.0);
+        assertEquals("literal " + i, properties.getString(LITERAL_KEY));
+    }
+
+    @Test
+    public void readsWhatItWrote() {
+        for (boolean checksum : new boolean[]{false, true}) {
+            for (boolean batch : new boolean[]{false, true}) {
+                for (Codec codec : new Codec[]{null, Codecs.LZ4}) {
+                    if (codec != null && !batch) continue; // Only batches are compressed
+                    for (boolean lazy : new boolean[]{false, true}) {
+                        String mode = "checksum=" + checksum + " batch=" + batch + " codec=" + codec + " lazy=" + lazy;
+                        MessageSerializer serializer = new MessageSerializer(checksum, false, dictionary);
+                        ByteBuffer buffer = batch ? writeBatch(serializer, MESSAGES, codec) : writeRecords(serializer, MESSAGES);
+                        try {
+                            readAll(new MessageSerializer(false, checksum, null, lazy), buffer, MESSAGES);
+                        } catch (AssertionError | RuntimeException ex) {
+                            throw new AssertionError(mode, ex);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer writeRecords(MessageSerializer serializer, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < count; i++) {
+            serializer.write(buffer, newMessage(i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Framed like BucketWriter#putBatch does
+    private static ByteBuffer writeBatch(MessageSerializer serializer, int count, Codec codec) {
+        ByteBuffer batch = ByteBuffer.allocate(1 << 20);
+        batch.position(MessageSerializer.MAX_BATCH_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            serializer.writeBatched(batch, newMessage(i));
+        }
+        batch.flip();
+        if (codec == null) {
+            serializer.writeBatchHeader(batch, count);
+            return batch;
+        }
+        ByteBuffer records = batch.duplicate();
+        records.position(MessageSerializer.MAX_BATCH_HEADER_SIZE);
+        ByteBuffer compressed = ByteBuffer.allocate(MessageSerializer.maxCompressedBatchSize(codec, records.remaining()));
+        assertTrue(serializer.writeCompressedBatch(compressed, records, count, codec));
+        compressed.flip();
+        return compressed;
+    }
+
+    private void readAll(MessageSerializer serializer, ByteBuffer buffer, int count) {
+        MessageSerializer.Deserializer deserializer = serializer.newDeserializer();
+        deserializer.setDictionary(KeyDictionary.open(dictionaryPath));
+        List<Message> messages = new ArrayList<>();
+        Message message;
+        while ((message = deserializer.read(buffer)) != null) {
+            messages.add(message);
+        }
+        assertEquals(count, messages.size());
+        // Lazy views are decoded after the whole buffer is read
+        for (int i = 0; i < count; i++) {
+            assertMessage(i, messages.get(i));
+        }
+    }
+
+    @Test
+    public void skipsRecordFailingItsChecksum() {
+        MessageSerializer serializer = new MessageSerializer(true, false, dictionary);
+        ByteBuffer buffer = writeRecords(serializer, 3);
+        // Flip a byte of the body of the second record
+        int second = MessageSerializer.RECORD_HEADER_SIZE + MessageSerializer.CHECKSUM_SIZE
+                + (buffer.getInt(0) & (MessageSerializer.CHECKSUM_FLAG - 1));
+        int body = second + MessageSerializer.RECORD_HEADER_SIZE + MessageSerializer.CHECKSUM_SIZE + 2;
+        buffer.put(body, (byte) (buffer.get(body) ^ 1));
+
+        MessageSerializer.Deserializer deserializer = new MessageSerializer(false, true).newDeserializer();
+        deserializer.setDictionary(KeyDictionary.open(dictionaryPath));
+        assertMessage(0, deserializer.read(buffer));
+        try {
+            deserializer.read(buffer);
+            fail("Corrupted record read");
+        } catch (CorruptRecordException ex) {
+            assertTrue(ex.isChecksumMismatch());
+        }
+        assertMessage(2, deserializer.read(buffer));
+        assertNull(deserializer.read(buffer));
+    }
+
+    @Test
+    public void skipsTornBatchWithoutVerifyingRecords() {
+        // Checksums of plain records are neither written nor verified, the batch still carries one
+        MessageSerializer serializer = new MessageSerializer(false, false, dictionary);
+        ByteBuffer batch = writeBatch(serializer, 10, null);
+        // A crash kept the header of the batch and lost the second half of its records
+        int half = batch.position() + batch.remaining() / 2;
+        Arrays.fill(batch.array(), half, batch.limit(), (byte) 0);
+
+        MessageSerializer.Deserializer deserializer = serializer.newDeserializer();
+        deserializer.setDictionary(KeyDictionary.open(dictionaryPath));
+        try {
+            Message message = deserializer.read(batch);
+            fail("Torn batch entered, read " + message);
+        } catch (CorruptRecordException ex) {
+            assertTrue(ex.isChecksumMismatch());
+        }
+        assertNull(deserializer.read(batch));
+    }
+}